@@ -0,0 +1,62 @@
+package info.arhome.home.k8s.nsd4k;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+//Index maintenance and lookup with many names
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AddressIndexBenchmark {
+    @Param({"10000", "100000"})
+    int names;
+
+    AddressIndex index;
+    String[] keys;
+    Map<String, List<String>> changed;
+    int next;
+
+    @Setup
+    public void setup() {
+        index = new AddressIndex();
+        keys = new String[names];
+        for (int i = 0; i < names; i++) {
+            keys[i] = "svc" + i + ".ns";
+            index.change(Collections.singletonMap(keys[i],
+                    Arrays.asList("10." + (i >> 16) + "." + ((i >> 8) & 0xff) + "." + (i & 0xff), "fc00::1")), 1);
+        }
+        changed = Collections.singletonMap(keys[names / 2], Arrays.asList("10.255.0.1", "fc00::2"));
+        next = 0;
+    }
+
+    @Benchmark
+    public AddressIndex.Addresses get() {
+        next = (next + 1) % names;
+        return index.get(keys[next]);
+    }
+
+    @Benchmark
+    public AddressIndex change() {
+        index.change(changed, 1);
+        index.change(changed, -1);
+        return index;
+    }
+}
@@ -0,0 +1,90 @@
+package info.arhome.home.k8s.nsd4k;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+//One thread updating entries while others look names up, as the watch
+//threads and the DNS workers do
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DnsDBBenchmark {
+    @Param({"10000", "100000"})
+    int names;
+
+    DnsDB dnsDB;
+    NameKey[] keys;
+    DnsDB.Entry[] updates;
+
+    private static DnsDB.Entry makeEntry(int i, String addr) {
+        DnsDB.Entry entry = new DnsDB.Entry();
+        entry.kind = "Service";
+        entry.namespace = "ns";
+        entry.name = "svc" + i;
+        entry.aRecords.put("svc" + i + ".ns", Arrays.asList(addr, "fc00::1"));
+        return entry;
+    }
+
+    @Setup
+    public void setup() {
+        dnsDB = new DnsDB();
+        keys = new NameKey[names];
+        dnsDB.beginBatch();
+        for (int i = 0; i < names; i++) {
+            dnsDB.addreplace(makeEntry(i, "10.0.0.1"));
+            keys[i] = NameKey.fromString("svc" + i + ".ns");
+        }
+        dnsDB.endBatch();
+
+        updates = new DnsDB.Entry[]{makeEntry(names / 2, "10.0.0.2"), makeEntry(names / 2, "10.0.0.3")};
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next = 0;
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(1)
+    public DnsDB addreplace(Cursor cursor) {
+        cursor.next ^= 1;
+        synchronized (dnsDB) {
+            dnsDB.addreplace(updates[cursor.next]);
+        }
+        return dnsDB;
+    }
+
+    //One change and its snapshot, with no readers to share the CPU with
+    @Benchmark
+    @Group("publish")
+    @GroupThreads(1)
+    public DnsDB publish(Cursor cursor) {
+        return addreplace(cursor);
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(3)
+    public Answer lookup(Cursor cursor) {
+        cursor.next = (cursor.next + 1) % names;
+        return dnsDB.getSnapshot().getAnswer(keys[cursor.next]);
+    }
+}
@@ -0,0 +1,100 @@
+package info.arhome.home.k8s.nsd4k;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.OPTRecord;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+//Reply generation from raw query bytes, as done by the UDP workers
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResolverBenchmark {
+    Resolver resolver;
+    ByteBuffer hit;
+    ByteBuffer nxdomain;
+    ByteBuffer edns;
+    ByteBuffer any;
+    ByteBuffer out;
+
+    private static ByteBuffer query(String name, int type, boolean edns) throws IOException {
+        Message query = Message.newQuery(Record.newRecord(Name.fromString(name), type, DClass.IN));
+        if (edns)
+            query.addRecord(new OPTRecord(1232, 0, 0), Section.ADDITIONAL);
+        byte[] wire = query.toWire();
+        return ByteBuffer.allocateDirect(wire.length).put(wire).flip();
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        ConfigDto config = new ConfigDto();
+        config.domains = new String[]{"home", "home.arhome.info"};
+
+        DnsDB dnsDB = new DnsDB();
+        dnsDB.beginBatch();
+        for (int i = 0; i < 1000; i++) {
+            DnsDB.Entry entry = new DnsDB.Entry();
+            entry.kind = "Service";
+            entry.namespace = "ns";
+            entry.name = "svc" + i;
+            entry.aRecords.put("svc" + i + ".ns",
+                    Arrays.asList("10.0." + (i / 256) + "." + (i % 256), "10.1.0.1", "fc00::" + i));
+            dnsDB.addreplace(entry);
+        }
+        dnsDB.endBatch();
+
+        resolver = new Resolver(config, dnsDB);
+        hit = query("svc500.ns.home.", Type.A, false);
+        nxdomain = query("nothing.ns.home.", Type.A, false);
+        edns = query("svc500.ns.home.arhome.info.", Type.AAAA, true);
+        any = query("svc500.ns.home.", Type.ANY, false);
+        out = ByteBuffer.allocateDirect(Resolver.EDNS_PAYLOAD_SIZE);
+    }
+
+    private boolean reply(ByteBuffer in) {
+        out.clear();
+        return resolver.generateReply(in, out, false);
+    }
+
+    @Benchmark
+    public boolean hit() {
+        return reply(hit);
+    }
+
+    @Benchmark
+    public boolean nxdomain() {
+        return reply(nxdomain);
+    }
+
+    @Benchmark
+    public boolean edns() {
+        return reply(edns);
+    }
+
+    @Benchmark
+    public boolean any() {
+        return reply(any);
+    }
+}
@@ -0,0 +1,408 @@
+package info.arhome.home.k8s.nsd4k.bench;
+
+import info.arhome.home.k8s.nsd4k.ConfigDto;
+import info.arhome.home.k8s.nsd4k.DnsDB;
+import info.arhome.home.k8s.nsd4k.DnsServer;
+import info.arhome.home.k8s.nsd4k.PrettyException;
+
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.OPTRecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+//Runs a DnsServer on loopback with a synthetic DnsDB, fires queries at it from
+//several client threads and reports throughput, latency and drops.
+//
+//Options (all optional):
+//  --transport=udp|tcp   --clients=N      --duration=SECONDS  --names=N
+//  --port=N              --udpWorkers=N   --timeout=MS        --pipeline=N (tcp)
+//  --mix=a:60,aaaa:20,nxdomain:10,edns:10
+//  --maxDropRate=FRACTION  exit with status 1 if more queries are dropped
+public class LoadGen {
+    private static final String DOMAIN = "bench";
+    private static final int QUERIES_PER_KIND = 256;
+
+    private enum Kind {
+        A("a"),
+        AAAA("aaaa"),
+        NXDOMAIN("nxdomain"),
+        EDNS("edns");
+
+        public final String string;
+        Kind(String _string) {
+            string = _string;
+        }
+
+        public static Kind get(String string) {
+            for (Kind kind : Kind.values()) {
+                if (kind.string.equals(string))
+                    return kind;
+            }
+            throw new PrettyException("Unrecognized query kind " + string);
+        }
+    }
+
+    private static class Options {
+        String transport = "udp";
+        int clients = 4;
+        int duration = 10;
+        int names = 1000;
+        int port = 18053;
+        int udpWorkers = 0;
+        int timeout = 1000;
+        int pipeline = 1;
+        String mix = "a:60,aaaa:20,nxdomain:10,edns:10";
+        double maxDropRate = 1.0;
+
+        Options(String[] args) {
+            for (String arg : args) {
+                String[] parts = arg.split("=", 2);
+                if (parts.length != 2 || !parts[0].startsWith("--"))
+                    throw new PrettyException("Invalid argument " + arg);
+                String value = parts[1];
+                switch (parts[0].substring(2)) {
+                    case "transport" -> transport = value;
+                    case "clients" -> clients = Integer.parseInt(value);
+                    case "duration" -> duration = Integer.parseInt(value);
+                    case "names" -> names = Integer.parseInt(value);
+                    case "port" -> port = Integer.parseInt(value);
+                    case "udpWorkers" -> udpWorkers = Integer.parseInt(value);
+                    case "timeout" -> timeout = Integer.parseInt(value);
+                    case "pipeline" -> pipeline = Integer.parseInt(value);
+                    case "mix" -> mix = value;
+                    case "maxDropRate" -> maxDropRate = Double.parseDouble(value);
+                    default -> throw new PrettyException("Unknown option " + parts[0]);
+                }
+            }
+            if (!transport.equals("udp") && !transport.equals("tcp"))
+                throw new PrettyException("Unknown transport " + transport);
+        }
+
+        //One entry per percent of traffic
+        Kind[] schedule() {
+            List<Kind> result = new ArrayList<>();
+            for (String part : mix.split(",")) {
+                String[] kv = part.split(":");
+                Kind kind = Kind.get(kv[0]);
+                for (int i = 0; i < Integer.parseInt(kv[1]); i++)
+                    result.add(kind);
+            }
+            if (result.isEmpty())
+                throw new PrettyException("Empty query mix");
+            return result.toArray(new Kind[0]);
+        }
+    }
+
+    //Latency histogram in microseconds: powers of two, each split into
+    //8 linear sub-buckets
+    static class Histogram {
+        private static final int SUB_BUCKETS = 8;
+        private final long[] counts = new long[64 * SUB_BUCKETS];
+        long total = 0;
+        long max = 0;
+
+        private static int index(long micros) {
+            if (micros < SUB_BUCKETS)
+                return (int) micros;
+            int exp = 63 - Long.numberOfLeadingZeros(micros);
+            int sub = (int) (micros >> (exp - 3)) - SUB_BUCKETS;
+            return (exp - 2) * SUB_BUCKETS + sub;
+        }
+
+        private static long upperBound(int index) {
+            if (index < SUB_BUCKETS)
+                return index;
+            int exp = index / SUB_BUCKETS + 2;
+            int sub = index % SUB_BUCKETS;
+            return ((long) (SUB_BUCKETS + sub + 1) << (exp - 3)) - 1;
+        }
+
+        void record(long micros) {
+            counts[index(micros)]++;
+            total++;
+            max = Math.max(max, micros);
+        }
+
+        void add(Histogram other) {
+            for (int i = 0; i < counts.length; i++)
+                counts[i] += other.counts[i];
+            total += other.total;
+            max = Math.max(max, other.max);
+        }
+
+        long percentile(double p) {
+            long target = (long) Math.ceil(p * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target && seen > 0)
+                    return Math.min(upperBound(i), max);
+            }
+            return max;
+        }
+
+        void print() {
+            long seen = 0;
+            for (int exp = 0; exp < 40 && seen < total; exp++) {
+                long limit = (1L << (exp + 1)) - 1;
+                long count = 0;
+                for (int i = 0; i < counts.length; i++) {
+                    if (upperBound(i) <= limit && upperBound(i) > (limit >> 1))
+                        count += counts[i];
+                }
+                if (exp == 0)
+                    count += counts[0];
+                seen += count;
+                if (count > 0)
+                    System.out.printf("  <= %8d us %10d  %6.2f%%%n", limit, count, 100.0 * count / total);
+            }
+        }
+    }
+
+    private static class Client implements Runnable {
+        final Options options;
+        final Kind[] schedule;
+        final byte[][][] queries = new byte[Kind.values().length][][];
+        final InetSocketAddress server;
+        final long deadline;
+        final Random random;
+
+        final Histogram histogram = new Histogram();
+        long sent = 0;
+        long received = 0;
+        long dropped = 0;
+        long errors = 0;
+        int nextId = 0;
+
+        Client(Options _options, InetSocketAddress _server, long _deadline, long seed) throws IOException {
+            options = _options;
+            schedule = options.schedule();
+            server = _server;
+            deadline = _deadline;
+            random = new Random(seed);
+
+            for (Kind kind : Kind.values()) {
+                queries[kind.ordinal()] = new byte[QUERIES_PER_KIND][];
+                for (int i = 0; i < QUERIES_PER_KIND; i++)
+                    queries[kind.ordinal()][i] = makeQuery(kind, random.nextInt(options.names));
+            }
+        }
+
+        private static byte[] makeQuery(Kind kind, int n) throws IOException {
+            String host = (kind == Kind.NXDOMAIN ? "missing" : "svc") + n + ".ns." + DOMAIN + ".";
+            int type = kind == Kind.AAAA ? Type.AAAA : Type.A;
+            Message query = Message.newQuery(org.xbill.DNS.Record.newRecord(Name.fromString(host), type, DClass.IN));
+            if (kind == Kind.EDNS)
+                query.addRecord(new OPTRecord(1232, 0, 0), Section.ADDITIONAL);
+            return query.toWire();
+        }
+
+        //Picks the next query and gives it a fresh ID
+        private byte[] next(int[] kindOut) {
+            Kind kind = schedule[random.nextInt(schedule.length)];
+            kindOut[0] = kind.ordinal();
+            byte[] query = queries[kind.ordinal()][random.nextInt(QUERIES_PER_KIND)];
+            int id = nextId++ & 0xffff;
+            query[0] = (byte) (id >> 8);
+            query[1] = (byte) id;
+            return query;
+        }
+
+        private void check(int kind, byte[] response, int length) {
+            //Shorter than a header: the rest of the buffer is from an earlier reply
+            if (length < 12) {
+                errors++;
+                return;
+            }
+            int rcode = response[3] & 0x0f;
+            int ancount = ((response[6] & 0xff) << 8) | (response[7] & 0xff);
+            boolean ok = kind == Kind.NXDOMAIN.ordinal() ? rcode == 3 : rcode == 0 && ancount > 0;
+            if (!ok)
+                errors++;
+        }
+
+        private static int id(byte[] message) {
+            return ((message[0] & 0xff) << 8) | (message[1] & 0xff);
+        }
+
+        private void runUDP() throws IOException {
+            try (DatagramSocket sock = new DatagramSocket()) {
+                sock.connect(server);
+                sock.setSoTimeout(options.timeout);
+                byte[] buf = new byte[4096];
+                DatagramPacket in = new DatagramPacket(buf, buf.length);
+                DatagramPacket out = new DatagramPacket(buf, 0);
+                int[] kind = new int[1];
+
+                while (System.nanoTime() < deadline) {
+                    byte[] query = next(kind);
+                    out.setData(query);
+                    long start = System.nanoTime();
+                    sock.send(out);
+                    sent++;
+                    while (true) {
+                        in.setLength(buf.length);
+                        try {
+                            sock.receive(in);
+                        } catch (SocketTimeoutException e) {
+                            dropped++;
+                            break;
+                        }
+                        //Skip late replies to queries already counted as dropped, and
+                        //anything too short to have an ID
+                        if (in.getLength() < 2 || id(buf) != id(query))
+                            continue;
+                        histogram.record((System.nanoTime() - start) / 1000);
+                        received++;
+                        check(kind[0], buf, in.getLength());
+                        break;
+                    }
+                }
+            }
+        }
+
+        private void runTCP() throws IOException {
+            byte[] buf = new byte[65535];
+            int[] kind = new int[1];
+            int[] kinds = new int[options.pipeline];
+            long[] starts = new long[options.pipeline];
+
+            while (System.nanoTime() < deadline) {
+                try (Socket s = new Socket()) {
+                    s.connect(server, options.timeout);
+                    s.setSoTimeout(options.timeout);
+                    s.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+
+                    while (System.nanoTime() < deadline) {
+                        for (int i = 0; i < options.pipeline; i++) {
+                            byte[] query = next(kind);
+                            kinds[i] = kind[0];
+                            starts[i] = System.nanoTime();
+                            out.writeShort(query.length);
+                            out.write(query);
+                            sent++;
+                        }
+                        out.flush();
+                        for (int i = 0; i < options.pipeline; i++) {
+                            int length = in.readUnsignedShort();
+                            in.readFully(buf, 0, length);
+                            histogram.record((System.nanoTime() - starts[i]) / 1000);
+                            received++;
+                            check(kinds[i], buf, length);
+                        }
+                    }
+                } catch (IOException e) {
+                    //Count what was in flight as dropped and reconnect
+                    dropped += sent - received - dropped;
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (options.transport.equals("udp"))
+                    runUDP();
+                else
+                    runTCP();
+            } catch (IOException e) {
+                throw new PrettyException("Client failed", e);
+            }
+        }
+    }
+
+    private static DnsDB makeDnsDB(int names) {
+        DnsDB dnsDB = new DnsDB();
+        synchronized (dnsDB) {
+            dnsDB.beginBatch();
+            for (int i = 0; i < names; i++) {
+                DnsDB.Entry entry = new DnsDB.Entry();
+                entry.kind = "Service";
+                entry.namespace = "ns";
+                entry.name = "svc" + i;
+                entry.aRecords.put("svc" + i + ".ns", Arrays.asList(
+                        "10." + (i >> 16) + "." + ((i >> 8) & 0xff) + "." + (i & 0xff),
+                        "10.255.0.1",
+                        "fc00::" + Integer.toHexString(i & 0xffff)));
+                dnsDB.addreplace(entry);
+            }
+            dnsDB.endBatch();
+        }
+        return dnsDB;
+    }
+
+    public static void main(String[] args) throws Exception {
+        //Keep AUDIT logging of the synthetic entries out of the report
+        System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn");
+        Options options = new Options(args);
+
+        ConfigDto config = new ConfigDto();
+        config.domains = new String[]{DOMAIN};
+        ConfigDto.ListeningSocket listen = new ConfigDto.ListeningSocket();
+        listen.addr = "127.0.0.1";
+        listen.port = options.port;
+        listen.udpWorkers = options.udpWorkers;
+        config.dnsListen = new ConfigDto.ListeningSocket[]{listen};
+        config.tcpMaxConnections = Math.max(config.tcpMaxConnections, options.clients);
+        new DnsServer(config, makeDnsDB(options.names));
+
+        InetSocketAddress server = new InetSocketAddress("127.0.0.1", options.port);
+        long start = System.nanoTime();
+        long deadline = start + options.duration * 1_000_000_000L;
+        Client[] clients = new Client[options.clients];
+        Thread[] threads = new Thread[options.clients];
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = new Client(options, server, deadline, i);
+            threads[i] = new Thread(clients[i]);
+            threads[i].start();
+        }
+
+        Histogram histogram = new Histogram();
+        long sent = 0;
+        long received = 0;
+        long dropped = 0;
+        long errors = 0;
+        for (int i = 0; i < clients.length; i++) {
+            threads[i].join();
+            histogram.add(clients[i].histogram);
+            sent += clients[i].sent;
+            received += clients[i].received;
+            dropped += clients[i].dropped;
+            errors += clients[i].errors;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double dropRate = sent == 0 ? 0 : (double) dropped / sent;
+
+        System.out.printf("transport %s, %d clients, %d names, %.1f s%n",
+                options.transport, options.clients, options.names, seconds);
+        System.out.printf("sent %d, received %d, dropped %d (%.4f%%), wrong answers %d%n",
+                sent, received, dropped, 100 * dropRate, errors);
+        System.out.printf("throughput %.0f qps%n", received / seconds);
+        System.out.printf("latency us: p50 %d, p90 %d, p99 %d, p99.9 %d, max %d%n",
+                histogram.percentile(0.5), histogram.percentile(0.9), histogram.percentile(0.99),
+                histogram.percentile(0.999), histogram.max);
+        System.out.println("latency histogram:");
+        histogram.print();
+
+        System.exit(errors > 0 || dropRate > options.maxDropRate ? 1 : 0);
+    }
+}
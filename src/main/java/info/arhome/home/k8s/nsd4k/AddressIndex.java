@@ -0,0 +1,211 @@
+package info.arhome.home.k8s.nsd4k;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.xbill.DNS.Address;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+//Like Index<String, String>, but keeps the addresses of each name packed:
+//IPv4 addresses as ints and IPv6 addresses as 16-byte runs, each with a
+//reference count.
+public class AddressIndex {
+    private static final Logger log = LoggerFactory.getLogger(AddressIndex.class);
+
+    //Addresses of one name, in the order they were first added
+    public static class Addresses {
+        private int[] v4 = new int[0];
+        private int[] v4Counts = new int[0];
+        private int v4Size = 0;
+
+        private byte[] v6 = new byte[0];
+        private int[] v6Counts = new int[0];
+        private int v6Size = 0;
+
+        public int v4Size() {
+            return v4Size;
+        }
+
+        public int v4(int i) {
+            return v4[i];
+        }
+
+        public int v6Size() {
+            return v6Size;
+        }
+
+        public void putV6(int i, ByteBuffer out) {
+            out.put(v6, i * 16, 16);
+        }
+
+        public boolean isEmpty() {
+            return v4Size == 0 && v6Size == 0;
+        }
+
+        private int indexOfV4(int addr) {
+            for (int i = 0; i < v4Size; i++) {
+                if (v4[i] == addr)
+                    return i;
+            }
+            return -1;
+        }
+
+        private int indexOfV6(byte[] addr) {
+            for (int i = 0; i < v6Size; i++) {
+                if (Arrays.equals(v6, i * 16, i * 16 + 16, addr, 0, 16))
+                    return i;
+            }
+            return -1;
+        }
+
+        //Both return whether the address was added or removed, rather than
+        //only counted again
+        private boolean changeV4(int addr, int delta) {
+            int i = indexOfV4(addr);
+            boolean added = i < 0;
+            if (added) {
+                if (v4Size == v4.length) {
+                    v4 = Arrays.copyOf(v4, v4Size * 2 + 1);
+                    v4Counts = Arrays.copyOf(v4Counts, v4.length);
+                }
+                i = v4Size++;
+                v4[i] = addr;
+                v4Counts[i] = 0;
+            }
+            v4Counts[i] += delta;
+            if (v4Counts[i] == 0) {
+                System.arraycopy(v4, i + 1, v4, i, v4Size - i - 1);
+                System.arraycopy(v4Counts, i + 1, v4Counts, i, v4Size - i - 1);
+                v4Size--;
+                return ! added;
+            }
+            return added;
+        }
+
+        private boolean changeV6(byte[] addr, int delta) {
+            int i = indexOfV6(addr);
+            boolean added = i < 0;
+            if (added) {
+                if (v6Size == v6Counts.length) {
+                    v6Counts = Arrays.copyOf(v6Counts, v6Size * 2 + 1);
+                    v6 = Arrays.copyOf(v6, v6Counts.length * 16);
+                }
+                i = v6Size++;
+                System.arraycopy(addr, 0, v6, i * 16, 16);
+                v6Counts[i] = 0;
+            }
+            v6Counts[i] += delta;
+            if (v6Counts[i] == 0) {
+                System.arraycopy(v6, (i + 1) * 16, v6, i * 16, (v6Size - i - 1) * 16);
+                System.arraycopy(v6Counts, i + 1, v6Counts, i, v6Size - i - 1);
+                v6Size--;
+                return ! added;
+            }
+            return added;
+        }
+
+        private boolean change(byte[] addr, int delta) {
+            if (addr.length == 16)
+                return changeV6(addr, delta);
+            return changeV4(ByteBuffer.wrap(addr).getInt(), delta);
+        }
+
+        //Textual form of the addresses, IPv4 first
+        public List<String> toList() {
+            List<String> result = new ArrayList<>();
+            try {
+                for (int i = 0; i < v4Size; i++)
+                    result.add(InetAddress.getByAddress(ByteBuffer.allocate(4).putInt(v4[i]).array()).getHostAddress());
+                for (int i = 0; i < v6Size; i++)
+                    result.add(InetAddress.getByAddress(Arrays.copyOfRange(v6, i * 16, i * 16 + 16)).getHostAddress());
+            } catch (UnknownHostException e) {
+                throw new IllegalStateException(e);
+            }
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return toList().toString();
+        }
+    }
+
+    private final Map<String, Addresses> map = new HashMap<>();
+
+    //Adds delta times the count of each address to deltas, keyed by name and
+    //then by the packed address
+    private static void count(Map<String, Map<ByteBuffer, Integer>> deltas,
+                              Map<String, List<String>> entries, int delta) {
+        for (Map.Entry<String, List<String>> oneEntry : entries.entrySet()) {
+            if (oneEntry.getValue().isEmpty())
+                continue;
+            Map<ByteBuffer, Integer> addrDeltas = deltas.computeIfAbsent(oneEntry.getKey(), k -> new LinkedHashMap<>());
+            for (String element : oneEntry.getValue()) {
+                boolean v6 = element.contains(":");
+                byte[] addr = Address.toByteArray(element, v6 ? Address.IPv6 : Address.IPv4);
+                if (addr == null) {
+                    if (delta > 0)
+                        log.warn("Ignoring invalid address {} for {}", element, oneEntry.getKey());
+                } else {
+                    addrDeltas.merge(ByteBuffer.wrap(addr), delta, Integer::sum);
+                }
+            }
+        }
+    }
+
+    private Set<String> apply(Map<String, Map<ByteBuffer, Integer>> deltas) {
+        Set<String> changed = new HashSet<>();
+        for (Map.Entry<String, Map<ByteBuffer, Integer>> oneName : deltas.entrySet()) {
+            Addresses addresses = map.get(oneName.getKey());
+            boolean nameChanged = false;
+            for (Map.Entry<ByteBuffer, Integer> oneAddr : oneName.getValue().entrySet()) {
+                if (oneAddr.getValue() == 0)
+                    continue;
+                if (addresses == null) {
+                    addresses = new Addresses();
+                    map.put(oneName.getKey(), addresses);
+                }
+                nameChanged |= addresses.change(oneAddr.getKey().array(), oneAddr.getValue());
+            }
+
+            if (addresses != null && addresses.isEmpty()) {
+                map.remove(oneName.getKey());
+            }
+            if (nameChanged)
+                changed.add(oneName.getKey());
+        }
+        return changed;
+    }
+
+    //Returns the names whose set of addresses changed
+    public Set<String> change(Map<String, List<String>> entries, int delta) {
+        Map<String, Map<ByteBuffer, Integer>> deltas = new LinkedHashMap<>();
+        count(deltas, entries, delta);
+        return apply(deltas);
+    }
+
+    //Same as changing by -1 for before and by 1 for after, but addresses in
+    //both are left alone
+    public Set<String> replace(Map<String, List<String>> before, Map<String, List<String>> after) {
+        Map<String, Map<ByteBuffer, Integer>> deltas = new LinkedHashMap<>();
+        count(deltas, before, -1);
+        count(deltas, after, 1);
+        return apply(deltas);
+    }
+
+    //Returns the live addresses of the name without copying, or null if it has none
+    public Addresses get(String key) {
+        return map.get(key);
+    }
+}
@@ -0,0 +1,89 @@
+package info.arhome.home.k8s.nsd4k;
+
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Type;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//Address records of one name, encoded in wire format when the name changes.
+//Every record refers to the question name with a compression pointer, so the
+//same bytes can be copied into any response.
+public class Answer {
+    public static final int TTL = 60;
+
+    //Pointer to the question name at offset 12
+    private static final short NAME_POINTER = (short) 0xc00c;
+    private static final int RR_HEADER_LENGTH = 12;
+    public static final int A_LENGTH = RR_HEADER_LENGTH + 4;
+    public static final int AAAA_LENGTH = RR_HEADER_LENGTH + 16;
+
+    private final byte[] aRecords;
+    public final int aCount;
+    private final byte[] aaaaRecords;
+    public final int aaaaCount;
+
+    private final AtomicInteger cursor = new AtomicInteger();
+
+    private static void putHeader(ByteBuffer out, int type, int rdlength) {
+        out.putShort(NAME_POINTER);
+        out.putShort((short) type);
+        out.putShort((short) DClass.IN);
+        out.putInt(TTL);
+        out.putShort((short) rdlength);
+    }
+
+    public Answer(AddressIndex.Addresses addresses) {
+        aCount = addresses.v4Size();
+        ByteBuffer a = ByteBuffer.allocate(aCount * A_LENGTH);
+        for (int i = 0; i < aCount; i++) {
+            putHeader(a, Type.A, 4);
+            a.putInt(addresses.v4(i));
+        }
+        aRecords = a.array();
+
+        aaaaCount = addresses.v6Size();
+        ByteBuffer aaaa = ByteBuffer.allocate(aaaaCount * AAAA_LENGTH);
+        for (int i = 0; i < aaaaCount; i++) {
+            putHeader(aaaa, Type.AAAA, 16);
+            addresses.putV6(i, aaaa);
+        }
+        aaaaRecords = aaaa.array();
+    }
+
+    public int count(int type) {
+        if (type == Type.A)
+            return aCount;
+        if (type == Type.AAAA)
+            return aaaaCount;
+        return 0;
+    }
+
+    //Successive values for round-robin rotation
+    public int nextRotation() {
+        return cursor.getAndIncrement() & Integer.MAX_VALUE;
+    }
+
+    public static int recordLength(int type) {
+        return type == Type.AAAA ? AAAA_LENGTH : A_LENGTH;
+    }
+
+    //Writes all records of the given type, starting from record number 'first'
+    //and wrapping around
+    public void write(ByteBuffer out, int type, int first) {
+        byte[] records = type == Type.AAAA ? aaaaRecords : aRecords;
+        int length = recordLength(type);
+        int count = count(type);
+        int split = (first % count) * length;
+        out.put(records, split, count * length - split);
+        out.put(records, 0, split);
+    }
+
+    //Address of record number i of the given type
+    public byte[] rdata(int type, int i) {
+        byte[] records = type == Type.AAAA ? aaaaRecords : aRecords;
+        int offset = i * recordLength(type) + RR_HEADER_LENGTH;
+        return Arrays.copyOfRange(records, offset, offset + recordLength(type) - RR_HEADER_LENGTH);
+    }
+}
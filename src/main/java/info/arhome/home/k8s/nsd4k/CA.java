@@ -1,40 +1,144 @@
 package info.arhome.home.k8s.nsd4k;
 
+import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.openssl.PEMKeyPair;
+import org.bouncycastle.openssl.PEMParser;
+import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.pkcs.PKCS8EncryptedPrivateKeyInfo;
+import org.bouncycastle.util.io.pem.PemObject;
+import org.bouncycastle.util.io.pem.PemWriter;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 //import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class CA {
     Logger log = LoggerFactory.getLogger(CA.class);
 
     public static final String CA_CERT_FILE = "cacert.pem";
     public static final String CA_KEY_FILE = "cakey.pem";
-    public static final String EXT_FILE = "ext.cnf";
     public static final String CERT_FILE = "cert.pem";
-    public static final String CSR_FILE = "cert.csr";
     public static final String KEY_FILE = "key.pem";
     //private static final String COMBINED_FILE = "combined.pem";
 
+    private static final Duration CA_VALIDITY = Duration.ofDays(1095);
+
+    private static final Metrics.Histogram certTime = Metrics.histogram("nsd4k_cert_generation_seconds",
+            "Time spent generating a certificate", Metrics.SLOW_BUCKETS);
+
+    //Key type and lifetime of a certificate
+    public static class Profile {
+        public final KeyPairPool.Algorithm algorithm;
+        public final Duration validity;
+        //Asked for by a label, so a certificate without it is replaced right
+        //away; defaults are only taken on when a certificate is renewed
+        public final boolean algorithmRequested;
+        public final boolean validityRequested;
+
+        public Profile(KeyPairPool.Algorithm _algorithm, Duration _validity) {
+            this(_algorithm, _validity, false, false);
+        }
+
+        public Profile(KeyPairPool.Algorithm _algorithm, Duration _validity,
+                       boolean _algorithmRequested, boolean _validityRequested) {
+            algorithm = _algorithm;
+            validity = _validity;
+            algorithmRequested = _algorithmRequested;
+            validityRequested = _validityRequested;
+        }
+
+        @Override
+        public String toString() {
+            return algorithm.string + "/" + validity.toDays() + "d";
+        }
+    }
+
     public static class Cert {
         private final FileTime generationTime;
+        //Profile the certificate was issued with; the algorithm is null if unknown
+        private final Profile profile;
+        //Whether key.pem holds the key of cert.pem
+        private final boolean keyMatches;
 
         private final Path basePath;
 
-        private Cert(Path _basePath) throws IOException {
+        //PEM material, read from disk once
+        private final byte[] certificateData;
+        private final byte[] privateKeyData;
+        private final byte[] caCertificateData;
+        //Hex SHA-256 over all three, to tell whether a secret is up to date
+        private final String hash;
+
+        private Cert(Path _basePath, byte[] _caCertificateData) throws IOException {
             basePath = _basePath;
 
             generationTime = Files.readAttributes(basePath.resolve(CERT_FILE), BasicFileAttributes.class).lastModifiedTime();
+            certificateData = Files.readAllBytes(basePath.resolve(CERT_FILE));
+            privateKeyData = Files.readAllBytes(basePath.resolve(KEY_FILE));
+            caCertificateData = _caCertificateData;
+            hash = sha256(certificateData, privateKeyData, caCertificateData);
+
+            X509CertificateHolder certificate = parseCertificate(certificateData, basePath.resolve(CERT_FILE));
+            PublicKey publicKey = new JcaPEMKeyConverter().getPublicKey(certificate.getSubjectPublicKeyInfo());
+            profile = new Profile(KeyPairPool.Algorithm.of(publicKey),
+                    Duration.between(certificate.getNotBefore().toInstant(), certificate.getNotAfter().toInstant()));
+            keyMatches = isKeyPair(publicKey, readPrivateKey(basePath.resolve(KEY_FILE)));
+        }
+
+        //Whether the certificate has what the profile requests
+        public boolean matches(Profile other) {
+            return (! other.algorithmRequested || profile.algorithm == other.algorithm)
+                    && (! other.validityRequested || profile.validity.equals(other.validity));
+        }
+
+        public Profile getProfile() {
+            return profile;
+        }
+
+        public boolean keyMatches() {
+            return keyMatches;
         }
 
         public Path getCertificatePem() {
@@ -49,6 +153,22 @@ public class CA {
             return generationTime;
         }
 
+        public byte[] getCertificateData() {
+            return certificateData;
+        }
+
+        public byte[] getPrivateKeyData() {
+            return privateKeyData;
+        }
+
+        public byte[] getCaCertificateData() {
+            return caCertificateData;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
         /*
         public Path getCombinedPem() throws IOException {
             Path result = basePath.resolve(COMBINED_FILE);
@@ -68,23 +188,169 @@ public class CA {
     final Path cacert;
     final Path cakey;
 
-    private int run(String... args) throws IOException {
+    //CA material, loaded once
+    private final byte[] caCertificateData;
+    private final X509CertificateHolder caCertificate;
+    private final PrivateKey caPrivateKey;
+    private final PublicKey caPublicKey;
+    private final SecureRandom random = new SecureRandom();
+
+    //Profile used when a service does not choose its own
+    public final Profile defaultProfile;
+
+    //Keys for new certificates, by algorithm
+    private final ConcurrentHashMap<KeyPairPool.Algorithm, KeyPairPool> keyPairs = new ConcurrentHashMap<>();
+
+    //Last certificate seen for each name
+    private final ConcurrentHashMap<String, Cert> certs = new ConcurrentHashMap<>();
+
+    //Certificate workers may ask for the same name at the same time
+    private final ConcurrentHashMap<String, Object> nameLocks = new ConcurrentHashMap<>();
+
+    //Converts an openssl style subject (/C=../O=../CN=..) to an X500Name
+    private static X500Name toX500Name(String subject) {
+        List<String> rdns = new ArrayList<>();
+        for (String rdn : subject.split("/")) {
+            if (!rdn.isEmpty())
+                rdns.add(rdn.replace(",", "\\,"));
+        }
+        return new X500Name(String.join(",", rdns));
+    }
+
+    private X500Name makeSubject(String name) {
+        String prefix = config.distinguishedNamePrefix == null ? "" : config.distinguishedNamePrefix;
+        return toX500Name(prefix + "/CN=" + name);
+    }
+
+    private static String signatureAlgorithm(PublicKey publicKey) {
+        KeyPairPool.Algorithm algorithm = KeyPairPool.Algorithm.of(publicKey);
+        if (algorithm != null)
+            return algorithm.signatureAlgorithm();
+        return publicKey.getAlgorithm().equals("EC") ? "SHA256withECDSA" : "SHA256withRSA";
+    }
+
+    private static ContentSigner signer(PublicKey publicKey, PrivateKey privateKey) throws OperatorCreationException {
+        return new JcaContentSignerBuilder(signatureAlgorithm(publicKey)).build(privateKey);
+    }
+
+    //Signs with the private key and verifies with the public one
+    private static boolean isKeyPair(PublicKey publicKey, PrivateKey privateKey) {
+        byte[] probe = "nsd4k".getBytes(StandardCharsets.US_ASCII);
+        try {
+            Signature signature = Signature.getInstance(signatureAlgorithm(publicKey));
+            signature.initSign(privateKey);
+            signature.update(probe);
+            byte[] signed = signature.sign();
+            signature.initVerify(publicKey);
+            signature.update(probe);
+            return signature.verify(signed);
+        } catch (GeneralSecurityException e) {
+            //A key of another type, for one
+            return false;
+        }
+    }
+
+    private static Duration parseValidity(String days) {
         try {
-            Process p = new ProcessBuilder(args).inheritIO().directory(basedir.toFile()).start();
-            return p.waitFor();
-        } catch (Exception e) {
-            throw new IOException("Unable to run command " + Arrays.toString(args));
+            int value = Integer.parseInt(days.trim());
+            if (value > 0)
+                return Duration.ofDays(value);
+        } catch (NumberFormatException e) {
+            //Fall through
         }
+        throw new PrettyException("Invalid certificate validity " + days);
     }
 
-    private void runOrDie(String... args) throws IOException {
-        int status = run(args);
-        if (status != 0)
-            throw new IOException("Command returned " + status + " exit status: " + Arrays.toString(args));
+    //Default profile with the given overrides, which may be null
+    public Profile profile(String algorithm, String validityDays) {
+        return new Profile(
+                algorithm == null ? defaultProfile.algorithm : KeyPairPool.Algorithm.get(algorithm),
+                validityDays == null ? defaultProfile.validity : parseValidity(validityDays),
+                algorithm != null, validityDays != null);
     }
 
-    private String makeSubject(String name) {
-        return config.distinguishedNamePrefix + "/CN=" + name;
+    //Only the default algorithm is generated ahead of time
+    private KeyPairPool keyPairPool(KeyPairPool.Algorithm algorithm) {
+        return keyPairs.computeIfAbsent(algorithm, a ->
+                new KeyPairPool(a, a == defaultProfile.algorithm ? config.keyPoolSize : 0));
+    }
+
+    //Positive and at most 20 bytes long, as RFC 5280 requires
+    private BigInteger serialNumber() {
+        return new BigInteger(159, random);
+    }
+
+    private static String pem(String type, byte[] encoded) throws IOException {
+        StringWriter result = new StringWriter();
+        try (PemWriter writer = new PemWriter(result)) {
+            writer.writeObject(new PemObject(type, encoded));
+        }
+        return result.toString();
+    }
+
+    //Readers see either the old file or the new one, never a partial one
+    private static void writeAtomically(Path path, String content) throws IOException {
+        Path tmp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp",
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        try {
+            Files.writeString(tmp, content, StandardCharsets.US_ASCII);
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    //Accepts both PKCS#8 and traditional keys, as written by any openssl version
+    private static PrivateKey readPrivateKey(Path path) throws IOException {
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.US_ASCII);
+             PEMParser parser = new PEMParser(reader)) {
+            Object object = parser.readObject();
+            JcaPEMKeyConverter converter = new JcaPEMKeyConverter();
+            if (object instanceof PEMKeyPair keyPair)
+                return converter.getKeyPair(keyPair).getPrivate();
+            if (object instanceof PrivateKeyInfo keyInfo)
+                return converter.getPrivateKey(keyInfo);
+            if (object instanceof PKCS8EncryptedPrivateKeyInfo)
+                throw new IOException("Encrypted CA key is not supported: " + path);
+            throw new IOException("No private key found in " + path);
+        }
+    }
+
+    private static X509CertificateHolder parseCertificate(byte[] data, Path path) throws IOException {
+        try (Reader reader = new StringReader(new String(data, StandardCharsets.US_ASCII));
+             PEMParser parser = new PEMParser(reader)) {
+            if (parser.readObject() instanceof X509CertificateHolder certificate)
+                return certificate;
+            throw new IOException("No certificate found in " + path);
+        }
+    }
+
+    private static String sha256(byte[]... parts) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (byte[] part : parts)
+                digest.update(part);
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private X509CertificateHolder makeCaCertificate(KeyPair keyPair) throws GeneralSecurityException, IOException {
+        try {
+            X500Name subject = makeSubject(config.caCommonName);
+            Instant now = Instant.now();
+            JcaX509ExtensionUtils extensionUtils = new JcaX509ExtensionUtils();
+            X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(subject, serialNumber(),
+                    Date.from(now), Date.from(now.plus(CA_VALIDITY)), subject, keyPair.getPublic())
+                    .addExtension(Extension.basicConstraints, true, new BasicConstraints(true))
+                    .addExtension(Extension.keyUsage, true, new KeyUsage(KeyUsage.keyCertSign | KeyUsage.cRLSign))
+                    .addExtension(Extension.subjectKeyIdentifier, false,
+                            extensionUtils.createSubjectKeyIdentifier(keyPair.getPublic()));
+            return builder.build(signer(keyPair.getPublic(), keyPair.getPrivate()));
+        } catch (OperatorCreationException e) {
+            throw new GeneralSecurityException(e);
+        }
     }
 
     public CA(ConfigDto _config) throws IOException {
@@ -105,70 +371,142 @@ public class CA {
         //Generate CA certificate if it does not exist
         if (! Files.exists(cacert)) {
             log.info("AUDIT: Generating CA certificate");
-            runOrDie("openssl", "req", "-new", "-x509", "-newkey", "rsa:4096", "-days", "1095",
-                    "-nodes", "-subj", makeSubject(config.caCommonName),
-                    "-keyout", cakey.toString(), "-out", cacert.toString());
+            try {
+                KeyPair keyPair = KeyPairPool.Algorithm.get(config.caKeyAlgorithm).generate();
+                X509CertificateHolder certificate = makeCaCertificate(keyPair);
+                writeAtomically(cakey, pem("PRIVATE KEY", keyPair.getPrivate().getEncoded()));
+                writeAtomically(cacert, pem("CERTIFICATE", certificate.getEncoded()));
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Unable to generate CA certificate", e);
+            }
+            Files.setPosixFilePermissions(cacert, PosixFilePermissions.fromString("rw-r--r--"));
         } else {
             log.info("AUDIT: Not generating CA certificate");
         }
+
+        caCertificateData = Files.readAllBytes(cacert);
+        caCertificate = parseCertificate(caCertificateData, cacert);
+        caPrivateKey = readPrivateKey(cakey);
+        caPublicKey = new JcaPEMKeyConverter().getPublicKey(caCertificate.getSubjectPublicKeyInfo());
+
+        defaultProfile = new Profile(KeyPairPool.Algorithm.get(config.keyAlgorithm),
+                parseValidity(Integer.toString(config.certValidityDays)));
+        keyPairPool(defaultProfile.algorithm);
     }
 
     public Cert makeCert(String name) throws IOException {
+        return makeCert(name, defaultProfile);
+    }
+
+    public Cert makeCert(String name, Profile profile) throws IOException {
+        long begin = System.nanoTime();
+
         //Make the application directory
         Path appdir = basedir.resolve("apps").resolve(name);
-        runOrDie("rm", "-rf", appdir.toString());
         Files.createDirectories(appdir);
 
         //subjectAltName
         String primaryName = null;
-        StringBuilder sanBuilder = new StringBuilder();
+        List<GeneralName> sans = new ArrayList<>();
         for (String suffix : config.domains) {
-            if (!sanBuilder.isEmpty())
-                sanBuilder.append(",");
             String fullName = name;
             if (! suffix.equals(""))
                 fullName = name + "." + suffix;
-            sanBuilder.append("DNS:").append(fullName);
+            sans.add(new GeneralName(GeneralName.dNSName, fullName));
             if (primaryName == null)
                 primaryName = fullName;
         }
         assert(primaryName != null);
-        String san = sanBuilder.toString();
-
-        log.info("AUDIT: generating certificate for {}", name);
 
-        //CSR
-        runOrDie("openssl", "req", "-new", "-newkey", "rsa:2048", "-nodes",
-                "-subj", makeSubject(primaryName), "-addext", "subjectAltName=" + san,
-                "-keyout", appdir.resolve(KEY_FILE).toString(), "-out", appdir.resolve(CSR_FILE).toString());
+        log.info("AUDIT: generating certificate for {} ({})", name, profile);
 
-        //Signing
-        Files.write(appdir.resolve(EXT_FILE), Arrays.asList("[EXTENSIONS]", "subjectAltName = " + san));
-        runOrDie("openssl", "x509", "-req", "-in", appdir.resolve(CSR_FILE).toString(),
-            "-days", "60", "-extfile", appdir.resolve(EXT_FILE).toString(), "-extensions=EXTENSIONS",
-                "-CA", cacert.toString(), "-CAkey", cakey.toString(), "-CAcreateserial",
-                "-out", appdir.resolve(CERT_FILE).toString());
-        Files.delete(appdir.resolve(EXT_FILE));
+        try {
+            KeyPair keyPair = keyPairPool(profile.algorithm).take();
+            JcaX509ExtensionUtils extensionUtils = new JcaX509ExtensionUtils();
+            Instant now = Instant.now();
+            X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(caCertificate.getSubject(),
+                    serialNumber(), Date.from(now), Date.from(now.plus(profile.validity)),
+                    makeSubject(primaryName), keyPair.getPublic())
+                    .addExtension(Extension.basicConstraints, true, new BasicConstraints(false))
+                    .addExtension(Extension.subjectAlternativeName, false,
+                            new GeneralNames(sans.toArray(new GeneralName[0])))
+                    .addExtension(Extension.authorityKeyIdentifier, false,
+                            extensionUtils.createAuthorityKeyIdentifier(caPublicKey));
+            X509CertificateHolder certificate = builder.build(signer(caPublicKey, caPrivateKey));
+
+            //Each file is replaced atomically, but not both together: a crash
+            //in between leaves the new key with the old certificate, which
+            //Cert notices and getCert replaces
+            writeAtomically(appdir.resolve(KEY_FILE), pem("PRIVATE KEY", keyPair.getPrivate().getEncoded()));
+            writeAtomically(appdir.resolve(CERT_FILE), pem("CERTIFICATE", certificate.getEncoded()));
+        } catch (GeneralSecurityException | OperatorCreationException e) {
+            throw new IOException("Unable to generate certificate for " + name, e);
+        }
 
-        return new Cert(appdir);
+        certTime.record(System.nanoTime() - begin);
+        Cert cert = new Cert(appdir, caCertificateData);
+        certs.put(name, cert);
+        return cert;
     }
 
     public Cert getCert(String name) throws IOException {
+        return getCert(name, defaultProfile);
+    }
+
+    //Reuses the existing certificate while it is in the first half of its
+    //own life and has what the profile requests. A certificate issued with
+    //older defaults is thus renewed with the current ones when it is due,
+    //not all at once when the defaults change.
+    public Cert getCert(String name, Profile profile) throws IOException {
         Path appdir = basedir.resolve("apps").resolve(name);
 
-        try {
-            Cert cert = new Cert(appdir);
+        while (true) {
+            Object lock = nameLocks.computeIfAbsent(name, k -> new Object());
+            synchronized (lock) {
+                //Forgotten while we waited, and maybe locked anew since
+                if (nameLocks.get(name) != lock)
+                    continue;
+                return getLockedCert(name, profile, appdir);
+            }
+        }
+    }
 
-            //Check if certificate is too old
-            if (cert.getGenerationTime().toInstant().plus(Duration.ofDays(30)).isAfter(Instant.now())) {
-                //Recent enough
-                return cert;
+    //Called with the lock of the name held
+    private Cert getLockedCert(String name, Profile profile, Path appdir) throws IOException {
+        Cert cert = certs.get(name);
+        if (cert == null) {
+            try {
+                cert = new Cert(appdir, caCertificateData);
+                certs.put(name, cert);
+            } catch(IOException e) {
+                //Swallow, certificate does not exist
             }
-        } catch(IOException e) {
-            //Swallow, certificate does not exist
         }
 
-        return makeCert(name);
+        if (cert != null && ! cert.keyMatches())
+            log.warn("Private key of {} does not match its certificate", name);
+
+        //Check if certificate is too old
+        if (cert != null && cert.keyMatches() && cert.matches(profile)
+                && cert.getGenerationTime().toInstant().plus(cert.getProfile().validity.dividedBy(2))
+                        .isAfter(Instant.now())) {
+            //Recent enough
+            return cert;
+        }
+
+        return makeCert(name, profile);
+    }
+
+    //Drops what is kept in memory for the name, when nothing needs it any
+    //more. The files stay, and are read again if the name comes back.
+    public void forget(String name) {
+        Object lock = nameLocks.get(name);
+        if (lock == null)
+            return;
+        synchronized (lock) {
+            certs.remove(name);
+            nameLocks.remove(name, lock);
+        }
     }
 
     public Path getCacertPem() {
@@ -0,0 +1,441 @@
+package info.arhome.home.k8s.nsd4k;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.kubernetes.client.custom.V1Patch;
+import io.kubernetes.client.openapi.ApiException;
+import io.kubernetes.client.openapi.apis.CoreV1Api;
+import io.kubernetes.client.openapi.models.V1ObjectMeta;
+import io.kubernetes.client.openapi.models.V1Secret;
+import io.kubernetes.client.util.PatchUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+
+//Issues certificates and patches them into secrets on a pool of worker
+//threads, so that the watch loops only have to update DNS. Jobs are keyed by
+//namespace and secret: a job submitted while another one for the same secret
+//is still queued replaces it, and two jobs for the same secret never run at
+//the same time. When the queue is full, submit() waits.
+//
+//Every job that ran is scheduled again for when its certificate is due for
+//renewal, with some jitter. A scheduler thread resubmits due jobs at no more
+//than certRotationsPerMinute, so renewals trickle in instead of arriving at once.
+//
+//A secret is only patched when its certificate material differs from what it
+//holds. That is checked against the secret informer cache when it has the
+//secret, which also brings a secret that was changed by someone else back to
+//the certificate. Otherwise it goes by the hash last applied to the secret or,
+//failing that, by reading the secret.
+//
+//The secret informer only watches secrets with the managed label, so that
+//other secrets are never listed or streamed. A secret that does not have it
+//yet gets it when it is first patched or found up to date.
+public class CertificateUpdater implements Informer.Handler<V1Secret> {
+    private static final Logger log = LoggerFactory.getLogger(CertificateUpdater.class);
+
+    public static final String MANAGED_LABEL = K8sUtil.getLabelPrefix() + "/managed";
+    public static final String MANAGED_SELECTOR = MANAGED_LABEL + "=true";
+
+    public static class Job {
+        public final String namespace;
+        //Service the certificate is for
+        public final String service;
+        public final String secret;
+        public final String dnsName;
+        //Profile overrides from the service labels, or null
+        public final String keyAlgorithm;
+        public final String validityDays;
+        //Shown in the audit log
+        public final String description;
+        final CoreV1Api coreV1Api;
+        final String key;
+
+        public Job(String _namespace, String _service, String _secret, String _dnsName, String _keyAlgorithm,
+                   String _validityDays, String _description, CoreV1Api _coreV1Api) {
+            namespace = _namespace;
+            service = _service;
+            secret = _secret;
+            dnsName = _dnsName;
+            keyAlgorithm = _keyAlgorithm;
+            validityDays = _validityDays;
+            description = _description;
+            coreV1Api = _coreV1Api;
+            key = namespace + "/" + secret;
+        }
+    }
+
+    private static class Scheduled {
+        final Instant due;
+        final Job job;
+
+        Scheduled(Instant _due, Job _job) {
+            due = _due;
+            job = _job;
+        }
+    }
+
+    //Retry delay for jobs that failed, doubled on each failure in a row
+    private static final Duration RETRY_DELAY = Duration.ofMinutes(10);
+    private static final Duration RETRY_MAX_DELAY = Duration.ofDays(1);
+
+    private final CA ca;
+    private final ObjectMapper objectMapper;
+    private final int queueSize;
+    //Tells whether a scheduled job still matches a service
+    private final Predicate<Job> current;
+    private final long rotationInterval;
+
+    //Queued jobs in submission order, and the keys of the jobs being worked on
+    private final LinkedHashMap<String, Job> pending = new LinkedHashMap<>();
+    private final Set<String> running = new HashSet<>();
+
+    //Jobs waiting for their renewal time, earliest first. An entry is stale
+    //unless it is also the one in 'scheduledByKey'.
+    private final PriorityQueue<Scheduled> scheduled = new PriorityQueue<>(Comparator.comparing(s -> s.due));
+    private final Map<String, Scheduled> scheduledByKey = new HashMap<>();
+
+    //Hash of the material last applied to each secret
+    private final Map<String, String> applied = new ConcurrentHashMap<>();
+
+    //Failures in a row of the job for each secret
+    private final Map<String, Integer> failures = new ConcurrentHashMap<>();
+
+    //Last job submitted for each secret
+    private final Map<String, Job> targets = new ConcurrentHashMap<>();
+    private volatile Informer<V1Secret> secrets = null;
+
+    private static final Metrics.Counter coalesced = Metrics.counter("nsd4k_cert_jobs_coalesced_total",
+            "Certificate jobs that replaced a queued job for the same secret");
+    private static final Metrics.Counter waits = Metrics.counter("nsd4k_cert_queue_waits_total",
+            "Times a watch loop had to wait because the certificate queue was full");
+    private static final Metrics.Counter succeeded = Metrics.counter("nsd4k_cert_jobs_total",
+            "Certificate jobs run", "result", "ok");
+    private static final Metrics.Counter failed = Metrics.counter("nsd4k_cert_jobs_total",
+            "Certificate jobs run", "result", "error");
+    private static final Metrics.Counter rotations = Metrics.counter("nsd4k_cert_rotations_total",
+            "Certificate jobs resubmitted for renewal");
+    private static final Metrics.Counter unchanged = Metrics.counter("nsd4k_cert_patches_skipped_total",
+            "Secret patches skipped because the secret already held the certificate");
+
+    public CertificateUpdater(ConfigDto config, CA _ca, Predicate<Job> _current) {
+        ca = _ca;
+        objectMapper = new ObjectMapper();
+        queueSize = Math.max(config.certQueueSize, 1);
+        current = _current;
+        rotationInterval = 60000L / Math.max(config.certRotationsPerMinute, 1);
+
+        Metrics.gauge("nsd4k_cert_queue_length", "Certificate jobs waiting for a worker", this::queueLength);
+        Metrics.gauge("nsd4k_cert_scheduled", "Certificates scheduled for renewal", this::scheduledCount);
+
+        Thread scheduler = new Thread(this::schedule, "cert-scheduler");
+        scheduler.start();
+
+        for (int i = 0; i < Math.max(config.certWorkers, 1); i++) {
+            Thread t = new Thread(this::work, "cert-" + i);
+            t.start();
+        }
+    }
+
+    public synchronized int queueLength() {
+        return pending.size();
+    }
+
+    public synchronized int scheduledCount() {
+        return scheduledByKey.size();
+    }
+
+    public void setSecrets(Informer<V1Secret> _secrets) {
+        secrets = _secrets;
+    }
+
+    static boolean isManaged(V1Secret secret) {
+        V1ObjectMeta metadata = secret.getMetadata();
+        return metadata != null && metadata.getLabels() != null
+                && "true".equals(metadata.getLabels().get(MANAGED_LABEL));
+    }
+
+    //The secrets we care about may have changed while the watch was down
+    @Override
+    public void onListPage(Collection<V1Secret> listed) {
+        for (V1Secret secret : listed)
+            onEvent(K8sUtil.WatchEvent.MODIFIED, secret);
+    }
+
+    //Checks the secret again; update() leaves it alone if it still holds the certificate
+    @Override
+    public void onEvent(K8sUtil.WatchEvent event, V1Secret secret) {
+        V1ObjectMeta metadata = secret.getMetadata();
+        if (metadata == null)
+            return;
+        String key = Informer.key(metadata.getNamespace(), metadata.getName());
+        //Deleted, or its label was taken away: what was applied is no guide
+        if (event == K8sUtil.WatchEvent.DELETED)
+            applied.remove(key);
+        Job job = targets.get(key);
+        if (job == null)
+            return;
+        //Only a secret that lost its label is there to be fixed now; a deleted
+        //one comes back with its ADDED event or the renewal
+        if (event == K8sUtil.WatchEvent.DELETED && ! exists(job))
+            return;
+        submit(job);
+    }
+
+    //A read on the informer thread, which only DELETED events pay for
+    private boolean exists(Job job) {
+        try {
+            readSecret(job);
+            return true;
+        } catch (ApiException e) {
+            //Anything else is for the job to find out
+            return ! K8sUtil.isNotFound(e);
+        }
+    }
+
+    public synchronized void submit(Job job) {
+        targets.put(job.key, job);
+        boolean waited = false;
+        while (! pending.containsKey(job.key) && pending.size() >= queueSize) {
+            if (! waited) {
+                waits.inc();
+                waited = true;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new PrettyException("Interrupted while queueing certificate job for " + job.key, e);
+            }
+        }
+        if (pending.put(job.key, job) != null)
+            coalesced.inc();
+        notifyAll();
+    }
+
+    //Oldest queued job whose secret is not being worked on
+    private synchronized Job take() throws InterruptedException {
+        while (true) {
+            Iterator<Job> it = pending.values().iterator();
+            while (it.hasNext()) {
+                Job job = it.next();
+                if (! running.contains(job.key)) {
+                    it.remove();
+                    running.add(job.key);
+                    notifyAll();
+                    return job;
+                }
+            }
+            wait();
+        }
+    }
+
+    private synchronized void done(Job job, Instant next) {
+        running.remove(job.key);
+        if (next != null) {
+            Scheduled entry = new Scheduled(next, job);
+            scheduledByKey.put(job.key, entry);
+            scheduled.add(entry);
+        }
+        notifyAll();
+    }
+
+    //Jitter of up to a tenth of the interval, so that certificates issued
+    //together are not renewed together
+    private static Instant withJitter(Instant base, Duration interval) {
+        long bound = Math.max(interval.toMillis() / 10, 1);
+        return base.plusMillis(ThreadLocalRandom.current().nextLong(bound));
+    }
+
+    //Removes and returns the next due job, waiting for it
+    private synchronized Job takeDue() throws InterruptedException {
+        while (true) {
+            Scheduled head = scheduled.peek();
+            if (head == null) {
+                wait();
+                continue;
+            }
+            if (scheduledByKey.get(head.job.key) != head) {
+                scheduled.poll();
+                continue;
+            }
+            long delay = Duration.between(Instant.now(), head.due).toMillis();
+            if (delay > 0) {
+                wait(delay);
+                continue;
+            }
+            scheduled.poll();
+            scheduledByKey.remove(head.job.key);
+            return head.job;
+        }
+    }
+
+    private void schedule() {
+        try {
+            while (true) {
+                Job job = takeDue();
+                if (! current.test(job)) {
+                    targets.remove(job.key, job);
+                    failures.remove(job.key);
+                    log.debug("Not renewing certificate in {}: service changed", job.key);
+                    forget(job);
+                    continue;
+                }
+                rotations.inc();
+                submit(job);
+                Thread.sleep(rotationInterval);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //Lets the CA drop the certificate of a job that was dropped, unless
+    //another secret still gets the same name
+    void forget(Job job) {
+        for (Job target : targets.values()) {
+            if (target.dnsName.equals(job.dnsName))
+                return;
+        }
+        ca.forget(job.dnsName);
+    }
+
+    static Duration retryDelay(int failures) {
+        Duration delay = RETRY_DELAY.multipliedBy(1L << Math.min(failures - 1, 16));
+        return delay.compareTo(RETRY_MAX_DELAY) < 0 ? delay : RETRY_MAX_DELAY;
+    }
+
+    private void work() {
+        while (true) {
+            Job job;
+            try {
+                job = take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            Instant next = null;
+            try {
+                next = update(job);
+                failures.remove(job.key);
+                succeeded.inc();
+            } catch (Exception e) {
+                failed.inc();
+                //A secret nobody created yet is no reason to ask every ten minutes
+                Duration delay = retryDelay(failures.merge(job.key, 1, Integer::sum));
+                next = withJitter(Instant.now().plus(delay), delay);
+                if (K8sUtil.isNotFound(e))
+                    log.warn("Secret {} for service {} not found, retrying in {}", job.key, job.description, delay);
+                else
+                    log.warn("Unable to update secret {} with certificate, retrying in {}", job.key, delay,
+                            K8sUtil.processException(e));
+            } finally {
+                done(job, next);
+            }
+        }
+    }
+
+    //Returns when the certificate should be renewed
+    Instant update(Job job) throws Exception {
+        CA.Profile profile = ca.profile(job.keyAlgorithm, job.validityDays);
+        CA.Cert cert = ca.getCert(job.dnsName, profile);
+        //The certificate's own validity, which is the profile's unless it
+        //predates a change of defaults
+        Duration renewAfter = cert.getProfile().validity.dividedBy(2);
+        Instant next = withJitter(cert.getGenerationTime().toInstant().plus(renewAfter), renewAfter);
+
+        Informer<V1Secret> secretCache = secrets;
+        V1Secret cached = secretCache != null ? secretCache.get(job.namespace, job.secret) : null;
+        if (cached == null && cert.getHash().equals(applied.get(job.key))) {
+            unchanged.inc();
+            return next;
+        }
+
+        Map<String, byte[]> secretDataModel = new HashMap<>();
+        secretDataModel.put(CA.CERT_FILE, cert.getCertificateData());
+        secretDataModel.put(CA.KEY_FILE, cert.getPrivateKeyData());
+        secretDataModel.put(CA.CA_CERT_FILE, cert.getCaCertificateData());
+
+        //The cache tells for free, and only has labelled secrets. Without it,
+        //and with nothing applied since we started, a read is cheaper than a
+        //write.
+        boolean same;
+        boolean managed = cached != null;
+        if (cached != null) {
+            same = sameData(cached.getData(), secretDataModel);
+        } else if (applied.containsKey(job.key)) {
+            same = false;
+        } else {
+            V1Secret secret = readSecret(job);
+            managed = isManaged(secret);
+            same = sameData(secret.getData(), secretDataModel);
+        }
+
+        if (same) {
+            unchanged.inc();
+        } else {
+            log.info("AUDIT: Adding TLS certificates for service {} in secret {}",
+                    job.description, job.secret);
+            patchSecret(job, secretDataModel);
+        }
+        //After the data, so that the informer first sees the secret up to date
+        if (! managed)
+            labelSecret(job);
+        applied.put(job.key, cert.getHash());
+        return next;
+    }
+
+    void patchSecret(Job job, Map<String, byte[]> secretDataModel) throws Exception {
+        //Create patch
+        V1Patch secretPatch = new V1Patch("[{\"op\":\"replace\",\"path\":\"/data\",\"value\":"
+                + objectMapper.writeValueAsString(secretDataModel) + "}]");
+
+        //Apply patch
+        PatchUtils.patch(V1Secret.class,
+                () -> job.coreV1Api.patchNamespacedSecretCall
+                        (job.secret, job.namespace, secretPatch,
+                                null, null, null, null, null),
+                V1Patch.PATCH_FORMAT_JSON_PATCH, job.coreV1Api.getApiClient());
+    }
+
+    //Adds the managed label, leaving other labels alone
+    void labelSecret(Job job) throws Exception {
+        V1Patch labelPatch = new V1Patch(objectMapper.writeValueAsString(
+                Map.of("metadata", Map.of("labels", Map.of(MANAGED_LABEL, "true")))));
+
+        PatchUtils.patch(V1Secret.class,
+                () -> job.coreV1Api.patchNamespacedSecretCall
+                        (job.secret, job.namespace, labelPatch,
+                                null, null, null, null, null),
+                V1Patch.PATCH_FORMAT_JSON_MERGE_PATCH, job.coreV1Api.getApiClient());
+    }
+
+    V1Secret readSecret(Job job) throws ApiException {
+        return job.coreV1Api.readNamespacedSecret(job.secret, job.namespace, null);
+    }
+
+    static boolean sameData(Map<String, byte[]> current, Map<String, byte[]> wanted) {
+        if (current == null || ! current.keySet().equals(wanted.keySet()))
+            return false;
+        for (Map.Entry<String, byte[]> oneEntry : wanted.entrySet()) {
+            if (! Arrays.equals(current.get(oneEntry.getKey()), oneEntry.getValue()))
+                return false;
+        }
+        return true;
+    }
+}
@@ -2,16 +2,50 @@ package info.arhome.home.k8s.nsd4k;
 
 public class ConfigDto {
     public String datadir;
+    //Seconds between writes of the DNS database to datadir, which is loaded
+    //at startup; 0 to neither write nor load it
+    public int dnsStoreInterval = 30;
     public String[] domains;
+    //Order of addresses in responses: "random", "roundrobin" or "fixed"
+    public String answerOrder = "random";
     public String distinguishedNamePrefix;
     public String caCommonName;
 
     public static class ListeningSocket {
         public String addr;
         public int port;
+        //Number of threads serving UDP, defaults to the number of CPUs
+        public int udpWorkers;
     }
     public ListeningSocket[] dnsListen;
+    public int tcpMaxConnections = 256;
+    //Seconds before an idle TCP connection is closed
+    public int tcpIdleTimeout = 10;
 
     public String[] privilegedNamespaces;
+    //Longest wait before retrying a failed watch; the wait doubles from a
+    //second with each failure in a row
+    public int watchRetryMaxSeconds = 60;
+    //Objects fetched per request when listing, 0 for all at once
+    public int listPageSize = 500;
+    //Milliseconds to gather changes from watch events into one DNS update
+    public int dnsBatchMillis = 10;
+
+    //Threads issuing certificates, and how many secrets may wait for them
+    public int certWorkers = 2;
+    public int certQueueSize = 1024;
+    //Upper bound on scheduled certificate renewals
+    public int certRotationsPerMinute = 10;
+    //Key type of issued certificates: "ec256", "ec384", "ed25519", "rsa2048",
+    //"rsa3072" or "rsa4096". Services can choose their own with a label.
+    public String keyAlgorithm = "ec256";
+    public int certValidityDays = 60;
+    //Key type of the CA, used only when the CA is first created
+    public String caKeyAlgorithm = "rsa4096";
+    //Key pairs generated ahead of time, 0 to generate them on demand
+    public int keyPoolSize = 16;
+
+    //Serves Prometheus metrics on /metrics if set
+    public ListeningSocket metricsListen;
 }
 
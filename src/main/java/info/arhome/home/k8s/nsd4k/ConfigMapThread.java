@@ -1,15 +1,10 @@
 package info.arhome.home.k8s.nsd4k;
 
 import io.kubernetes.client.openapi.ApiClient;
-import io.kubernetes.client.openapi.Configuration;
 import io.kubernetes.client.openapi.apis.CoreV1Api;
 import io.kubernetes.client.openapi.models.V1ConfigMap;
-import io.kubernetes.client.openapi.models.V1ConfigMapList;
-import io.kubernetes.client.openapi.models.V1ListMeta;
 import io.kubernetes.client.openapi.models.V1ObjectMeta;
-import io.kubernetes.client.util.Config;
 import io.kubernetes.client.util.Watch;
-import okhttp3.Call;
 import com.google.gson.reflect.TypeToken;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -17,30 +12,53 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-public class ConfigMapThread implements Runnable {
+public class ConfigMapThread implements Runnable, Informer.Handler<V1ConfigMap> {
     private static final Logger log = LoggerFactory.getLogger(ConfigMapThread.class);
 
     private static final String CONFIG_MAP_ENTRY_KIND = "ConfigMap";
+    private static final String RESOURCE = "configmaps";
 
     private static final String LABEL_SELECTOR = K8sUtil.getLabelPrefix() + "/dns=dns";
 
-    private final DnsDB dnsDB;
+    private final DnsDBUpdater updates;
     private final ObjectMapper objectMapper;
     private final Set<String> privilegedNamespaces;
+    private final Informer<V1ConfigMap> informer;
 
-    public ConfigMapThread(ConfigDto config, DnsDB _dnsDB) {
-        dnsDB = _dnsDB;
+    public ConfigMapThread(ConfigDto config, DnsDBUpdater _updates, ApiClient client) {
+        updates = _updates;
 
         objectMapper = new ObjectMapper();
         privilegedNamespaces = new HashSet<>();
         Collections.addAll(privilegedNamespaces, config.privilegedNamespaces);
+
+        CoreV1Api coreV1Api = new CoreV1Api(client);
+        informer = new Informer<>(RESOURCE, client,
+                (continueToken, limit) -> coreV1Api.listConfigMapForAllNamespaces(
+                        null, continueToken, null, LABEL_SELECTOR, limit,
+                        null, null, null, null, null),
+                resourceVersion -> coreV1Api.listConfigMapForAllNamespacesCall(
+                        true, null, null, LABEL_SELECTOR,
+                        null, null, resourceVersion, null,
+                        null, true, null),
+                new TypeToken<Watch.Response<V1ConfigMap>>() {
+                }.getType(),
+                this, configMap -> true, config);
+        //The entries loaded at startup are as of this; services have no
+        //checkpoint, since certificates need all of them listed
+        String checkpoint;
+        synchronized (updates.dnsDB) {
+            checkpoint = updates.dnsDB.getCheckpoint(RESOURCE);
+        }
+        if (checkpoint != null)
+            informer.resume(checkpoint);
     }
 
     private static class DnsEntriesDto {
@@ -82,93 +100,51 @@ public class ConfigMapThread implements Runnable {
         }
     }
 
-    void processConfigMap(V1ConfigMap configMap, K8sUtil.WatchEvent eventType) {
+    ConfigMapEntry processConfigMap(V1ConfigMap configMap, K8sUtil.WatchEvent eventType) {
         ConfigMapEntry entry = new ConfigMapEntry(configMap);
 
         final boolean remove = (eventType == K8sUtil.WatchEvent.DELETED);
-        synchronized (dnsDB) {
-            //Update dnsDB
-            if (remove) {
-                dnsDB.remove(entry);
-            } else {
-                dnsDB.addreplace(entry);
-            }
+        if (remove) {
+            updates.remove(entry);
+        } else {
+            updates.addreplace(entry);
         }
+        return entry;
     }
 
-    void loop() {
-        try {
-            //Connect to Kubernetes API
-            ApiClient client;
-            try {
-                client = Config.defaultClient();
-            } catch (IOException e) {
-                throw new PrettyException("Unable to connect to apiserver", K8sUtil.processException(e));
-            }
-            Configuration.setDefaultApiClient(client);
-
-            CoreV1Api coreV1Api = new CoreV1Api();
-
-            //List
-            log.info("List");
-            V1ConfigMapList configMapList = coreV1Api.listConfigMapForAllNamespaces(
-                    null, null, null, LABEL_SELECTOR, null,
-                    null, null, null, null, null);
-            V1ListMeta configMapListMeta = configMapList.getMetadata();
-            assert(configMapListMeta != null);
-
-            K8sUtil.WatchChecker<V1ConfigMap> checker = new K8sUtil.WatchChecker<>();
-            checker.resourceVersion = configMapListMeta.getResourceVersion();
-            synchronized (dnsDB) {
-                dnsDB.clear(CONFIG_MAP_ENTRY_KIND);
-                for (V1ConfigMap configMap : configMapList.getItems()) {
-                    processConfigMap(configMap, null);
-                }
-            }
+    //Static entries of the list so far, the rest are removed when it completes
+    private final Set<DnsDB.Entry> listed = new HashSet<>();
 
-            //Watch
-            while (true) {
-                log.info("Watch begin at {}", checker.resourceVersion);
-                Call call;
-                try {
-                    call = coreV1Api.listConfigMapForAllNamespacesCall(
-                            true, null, null, LABEL_SELECTOR,
-                            null, null, checker.resourceVersion, null,
-                            null, true, null);
-                } catch (Exception e) {
-                    throw new PrettyException("Failed to create watch call on configMaps", K8sUtil.processException(e));
-                }
+    @Override
+    public void beginList() {
+        listed.clear();
+    }
+
+    @Override
+    public void onListPage(Collection<V1ConfigMap> configMaps) {
+        for (V1ConfigMap configMap : configMaps) {
+            listed.add(processConfigMap(configMap, null));
+        }
+    }
 
-                try (Watch<V1ConfigMap> v1ConfigMapWatch = Watch.createWatch(client, call,
-                        new TypeToken<Watch.Response<V1ConfigMap>>() {
-                        }.getType())) {
+    @Override
+    public void endList() {
+        updates.retain(CONFIG_MAP_ENTRY_KIND, listed);
+        listed.clear();
+    }
 
-                    for (Watch.Response<V1ConfigMap> configMapResponse : v1ConfigMapWatch) {
-                        if (checker.check(configMapResponse))
-                            continue;
+    @Override
+    public void onEvent(K8sUtil.WatchEvent event, V1ConfigMap configMap) {
+        processConfigMap(configMap, event);
+    }
 
-                        processConfigMap(checker.object, checker.event);
-                    }
-                } catch (Exception e) {
-                    throw new PrettyException("Failed to execute watch on configMaps", K8sUtil.processException(e));
-                }
-                log.info("Watch end");
-            }
-        } catch (Exception e) {
-            log.error("Loop iteration failed", e);
-        }
+    @Override
+    public void onResourceVersion(String resourceVersion) {
+        updates.checkpoint(RESOURCE, resourceVersion);
     }
 
     @Override
     public void run() {
-        //Kubernetes watch loop
-        while (true) {
-            loop();
-            try {
-                Thread.sleep(15000);
-            } catch (Exception e) {
-                throw new PrettyException("Thread.sleep failed", e);
-            }
-        }
+        informer.run();
     }
 }
@@ -4,10 +4,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 public class DnsDB {
     private static final Logger log = LoggerFactory.getLogger(DnsDB.class);
@@ -37,52 +41,246 @@ public class DnsDB {
         }
     }
 
-    //Entries
+    //Immutable view of the indexes, read by the resolver without locking
+    public static class Snapshot {
+        public final long version;
+        //Number of entries when the snapshot was built
+        public final int entries;
+        //Shares all but the changed names with the snapshot before
+        private final HashTrie<NameKey, Answer> answers;
+
+        private Snapshot(long _version, int _entries, HashTrie<NameKey, Answer> _answers) {
+            version = _version;
+            entries = _entries;
+            answers = _answers;
+        }
+
+        public int names() {
+            return answers.size();
+        }
+
+        public Answer getAnswer(NameKey name) {
+            return answers.get(name);
+        }
+    }
+
+    //Entries, and the same entries by kind and then by namespace
     private final HashMap<Entry, Entry> entries;
+    private final HashMap<String, Map<String, Map<Entry, Entry>>> byKind;
 
     //Indexes
-    public final Index<String, String> aRecords;
+    public final AddressIndex aRecords;
 
-    public void remove(Entry entry) {
-        Entry existing = entries.get(entry);
-        if (existing != null) {
-            log.info("AUDIT: Removing {}", existing);
-            entries.remove(existing);
+    //Resource to the resourceVersion up to which its objects are in the entries
+    private final HashMap<String, String> checkpoints;
+
+    //Published snapshot and the names changed since it was built
+    private volatile Snapshot snapshot;
+    private Set<String> dirtyNames;
+    private int batchDepth;
+
+    private void publish() {
+        if (batchDepth > 0 || (dirtyNames.isEmpty() && entries.size() == snapshot.entries))
+            return;
+
+        Snapshot prev = snapshot;
+        HashTrie<NameKey, Answer> next = prev.answers;
+        for (String name : dirtyNames) {
+            NameKey key = NameKey.fromString(name);
+            if (key == null) {
+                log.warn("Not serving invalid name {}", name);
+                continue;
+            }
+            AddressIndex.Addresses addrs = aRecords.get(name);
+            next = next.with(key, addrs == null ? null : new Answer(addrs));
+        }
+        //A new set, since clear() costs as much as the largest batch ever was
+        dirtyNames = new HashSet<>();
+        snapshot = new Snapshot(prev.version + 1, entries.size(), next);
+    }
+
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    //Changes made between beginBatch() and endBatch() are published as one snapshot
+    public void beginBatch() {
+        batchDepth++;
+    }
+
+    public void endBatch() {
+        batchDepth--;
+        publish();
+    }
 
-            aRecords.change(existing.aRecords, -1);
+    //Names are case-insensitive, so they are indexed in lowercase
+    private static Map<String, List<String>> lowercase(Map<String, List<String>> aRecords) {
+        Map<String, List<String>> result = new HashMap<>();
+        for (Map.Entry<String, List<String>> oneEntry : aRecords.entrySet()) {
+            result.computeIfAbsent(oneEntry.getKey().toLowerCase(Locale.ROOT), k -> new ArrayList<>())
+                    .addAll(oneEntry.getValue());
         }
+        return result;
+    }
+
+    private void changeIndex(Entry entry, int delta) {
+        dirtyNames.addAll(aRecords.change(lowercase(entry.aRecords), delta));
     }
 
-    public void addreplace(Entry entry) {
-        remove(entry);
-        log.info("AUDIT: Adding {}", entry);
+    //Only the addresses that differ are indexed again, and only the names
+    //whose addresses changed are published again
+    private void replaceIndex(Entry existing, Entry entry) {
+        dirtyNames.addAll(aRecords.replace(lowercase(existing.aRecords), lowercase(entry.aRecords)));
+    }
+
+    //Adds or replaces the entry in every map, without indexing it
+    private void store(Entry entry) {
         entries.put(entry, entry);
+        byKind.computeIfAbsent(entry.kind, k -> new HashMap<>())
+                .computeIfAbsent(entry.namespace, k -> new HashMap<>())
+                .put(entry, entry);
+    }
 
-        aRecords.change(entry.aRecords, 1);
+    private void unstore(Entry entry) {
+        entries.remove(entry);
+        Map<String, Map<Entry, Entry>> namespaces = byKind.get(entry.kind);
+        if (namespaces == null)
+            return;
+        Map<Entry, Entry> inNamespace = namespaces.get(entry.namespace);
+        if (inNamespace != null) {
+            inNamespace.remove(entry);
+            if (inNamespace.isEmpty())
+                namespaces.remove(entry.namespace);
+        }
+        if (namespaces.isEmpty())
+            byKind.remove(entry.kind);
     }
 
-    public void clear(String kind) {
-        log.info("AUDIT: clearing kind: {}", kind);
-        for (Entry entry : entries.keySet()) {
-            if (entry.kind.equals(kind)) {
-                remove(entry);
+    //Returns whether there was such an entry
+    public boolean remove(Entry entry) {
+        Entry existing = entries.get(entry);
+        if (existing == null)
+            return false;
+
+        log.info("AUDIT: Removing {}", existing);
+        unstore(existing);
+
+        changeIndex(existing, -1);
+        publish();
+        return true;
+    }
+
+    //Returns whether any address changed
+    public boolean addreplace(Entry entry) {
+        Entry existing = entries.get(entry);
+        //Stored even when there is nothing to index, since the entry may differ otherwise
+        store(entry);
+        if (existing != null && existing.aRecords.equals(entry.aRecords))
+            return false;
+
+        if (existing != null) {
+            log.info("AUDIT: Replacing {}", entry);
+            replaceIndex(existing, entry);
+        } else {
+            log.info("AUDIT: Adding {}", entry);
+            changeIndex(entry, 1);
+        }
+        publish();
+        return true;
+    }
+
+    //Makes these the entries of the kind, as one snapshot. Entries that are
+    //already there with the same addresses are not indexed again. Returns the
+    //number of entries whose addresses changed.
+    public int replaceAll(String kind, Collection<? extends Entry> replacement) {
+        Set<Entry> keep = new HashSet<>();
+        for (Entry entry : replacement) {
+            if (! entry.kind.equals(kind))
+                throw new IllegalArgumentException("Entry " + entry + " is not a " + kind);
+            keep.add(entry);
+        }
+
+        int changed = 0;
+        beginBatch();
+        try {
+            changed += retain(kind, keep);
+            for (Entry entry : replacement) {
+                if (addreplace(entry))
+                    changed++;
             }
+        } finally {
+            endBatch();
         }
+        return changed;
     }
 
-    public List<Entry> list(String kind) {
-        List<Entry> result = new ArrayList<>();
-        for (Entry entry : entries.keySet()) {
-            if (entry.kind.equals(kind)) {
-                result.add(entry);
+    //Removes every entry of the kind that is not in keep, as one snapshot.
+    //Returns the number of entries removed.
+    public int retain(String kind, Set<? extends Entry> keep) {
+        int removed = 0;
+        beginBatch();
+        try {
+            for (Entry existing : list(kind)) {
+                if (! keep.contains(existing) && remove(existing))
+                    removed++;
             }
+        } finally {
+            endBatch();
         }
+        return removed;
+    }
+
+    public void clear(String kind) {
+        log.info("AUDIT: clearing kind: {}", kind);
+        replaceAll(kind, List.of());
+    }
 
+    public void setCheckpoint(String resource, String resourceVersion) {
+        checkpoints.put(resource, resourceVersion);
+    }
+
+    public String getCheckpoint(String resource) {
+        return checkpoints.get(resource);
+    }
+
+    public Map<String, String> getCheckpoints() {
+        return new HashMap<>(checkpoints);
+    }
+
+    //The stored entry equal to the given one, or null
+    public Entry get(Entry entry) {
+        return entries.get(entry);
+    }
+
+    //All of these return a copy, which may be changed while removing entries
+    public List<Entry> list() {
+        return new ArrayList<>(entries.values());
+    }
+
+    public List<Entry> list(String kind) {
+        List<Entry> result = new ArrayList<>();
+        Map<String, Map<Entry, Entry>> namespaces = byKind.get(kind);
+        if (namespaces != null) {
+            for (Map<Entry, Entry> inNamespace : namespaces.values())
+                result.addAll(inNamespace.values());
+        }
         return result;
     }
 
+    public List<Entry> list(String kind, String namespace) {
+        Map<String, Map<Entry, Entry>> namespaces = byKind.get(kind);
+        if (namespaces == null || ! namespaces.containsKey(namespace))
+            return new ArrayList<>();
+        return new ArrayList<>(namespaces.get(namespace).values());
+    }
+
     public DnsDB() {
         entries = new HashMap<>();
-        aRecords = new Index<>();
+        byKind = new HashMap<>();
+        checkpoints = new HashMap<>();
+        aRecords = new AddressIndex();
+        snapshot = new Snapshot(0, 0, HashTrie.empty());
+        dirtyNames = new HashSet<>();
+        batchDepth = 0;
     }
 }
@@ -0,0 +1,256 @@
+package info.arhome.home.k8s.nsd4k;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+//Keeps a copy of the DnsDB entries in datadir, so that after a restart
+//names resolve right away, from what was known before, instead of only once
+//the first lists from the apiserver are done. The lists then bring the
+//entries up to date like after any relist.
+//
+//Checkpoints are saved with the entries, so that a watch can go on from
+//where the saved entries are as of.
+//
+//The file is a header of magic, format version, body length and CRC32 of the
+//body, all big-endian ints, followed by the body: the number of entries and
+//then, for each entry, kind, namespace, name and its names with their
+//addresses; then, from version 2, the number of checkpoints and each resource
+//with its resourceVersion. Strings are a length and UTF-8 bytes. The file is
+//written to a temporary file and moved into place, and read through a memory
+//mapping.
+public class DnsDBStore {
+    private static final Logger log = LoggerFactory.getLogger(DnsDBStore.class);
+
+    static final String FILE = "dnsdb.bin";
+    private static final int MAGIC = 0x6e736434;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+
+    private final DnsDB dnsDB;
+    private final Path path;
+    //Seconds between checks for changes to write
+    private final int interval;
+    //Snapshot version and checkpoints last written or loaded
+    private long written = -1;
+    private Map<String, String> writtenCheckpoints = Map.of();
+
+    static class Contents {
+        final List<DnsDB.Entry> entries;
+        final Map<String, String> checkpoints;
+
+        Contents(List<DnsDB.Entry> _entries, Map<String, String> _checkpoints) {
+            entries = _entries;
+            checkpoints = _checkpoints;
+        }
+    }
+
+    private static final Metrics.Counter writes = Metrics.counter("nsd4k_dnsdb_store_writes_total",
+            "DNS database copies written to disk", "result", "ok");
+    private static final Metrics.Counter writeErrors = Metrics.counter("nsd4k_dnsdb_store_writes_total",
+            "DNS database copies written to disk", "result", "error");
+
+    public DnsDBStore(ConfigDto config, DnsDB _dnsDB) {
+        dnsDB = _dnsDB;
+        path = Paths.get(config.datadir, FILE).toAbsolutePath();
+        interval = config.dnsStoreInterval;
+    }
+
+    private static void putString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String getString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static byte[] encode(List<DnsDB.Entry> entries, Map<String, String> checkpoints) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        out.writeInt(entries.size());
+        for (DnsDB.Entry entry : entries) {
+            putString(out, entry.kind);
+            putString(out, entry.namespace);
+            putString(out, entry.name);
+            out.writeInt(entry.aRecords.size());
+            for (Map.Entry<String, List<String>> oneName : entry.aRecords.entrySet()) {
+                putString(out, oneName.getKey());
+                out.writeInt(oneName.getValue().size());
+                for (String addr : oneName.getValue())
+                    putString(out, addr);
+            }
+        }
+        out.writeInt(checkpoints.size());
+        for (Map.Entry<String, String> oneCheckpoint : checkpoints.entrySet()) {
+            putString(out, oneCheckpoint.getKey());
+            putString(out, oneCheckpoint.getValue());
+        }
+        out.flush();
+        byte[] bodyBytes = body.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(bodyBytes);
+        ByteBuffer result = ByteBuffer.allocate(HEADER_SIZE + bodyBytes.length);
+        result.putInt(MAGIC).putInt(VERSION).putInt(bodyBytes.length).putInt((int) crc.getValue());
+        result.put(bodyBytes);
+        return result.array();
+    }
+
+    static Contents decode(ByteBuffer in) {
+        if (in.remaining() < HEADER_SIZE || in.getInt() != MAGIC)
+            throw new PrettyException("Not a DNS database file");
+        int version = in.getInt();
+        if (version < 1 || version > VERSION)
+            throw new PrettyException("Unsupported DNS database file version " + version);
+        int length = in.getInt();
+        int expectedCrc = in.getInt();
+        if (length != in.remaining())
+            throw new PrettyException("Truncated DNS database file");
+        CRC32 crc = new CRC32();
+        crc.update(in.slice());
+        if ((int) crc.getValue() != expectedCrc)
+            throw new PrettyException("Bad checksum in DNS database file");
+
+        try {
+            int count = in.getInt();
+            List<DnsDB.Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                DnsDB.Entry entry = new DnsDB.Entry();
+                entry.kind = getString(in);
+                entry.namespace = getString(in);
+                entry.name = getString(in);
+                int names = in.getInt();
+                for (int j = 0; j < names; j++) {
+                    String name = getString(in);
+                    int addrCount = in.getInt();
+                    List<String> addrs = new ArrayList<>(addrCount);
+                    for (int k = 0; k < addrCount; k++)
+                        addrs.add(getString(in));
+                    entry.aRecords.put(name, addrs);
+                }
+                entries.add(entry);
+            }
+            Map<String, String> checkpoints = new HashMap<>();
+            if (version >= 2) {
+                int checkpointCount = in.getInt();
+                for (int i = 0; i < checkpointCount; i++)
+                    checkpoints.put(getString(in), getString(in));
+            }
+            return new Contents(entries, checkpoints);
+        } catch (RuntimeException e) {
+            throw new PrettyException("Corrupt DNS database file", e);
+        }
+    }
+
+    //Fills the DnsDB from the file, if there is a good one. Returns the number
+    //of entries loaded.
+    public int load() {
+        if (interval <= 0)
+            return 0;
+        Contents contents;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            contents = decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (NoSuchFileException e) {
+            log.info("No DNS database in {}", path);
+            return 0;
+        } catch (Exception e) {
+            log.warn("Ignoring DNS database in {}", path, e);
+            return 0;
+        }
+
+        synchronized (dnsDB) {
+            dnsDB.beginBatch();
+            try {
+                for (DnsDB.Entry entry : contents.entries)
+                    dnsDB.addreplace(entry);
+                for (Map.Entry<String, String> oneCheckpoint : contents.checkpoints.entrySet())
+                    dnsDB.setCheckpoint(oneCheckpoint.getKey(), oneCheckpoint.getValue());
+            } finally {
+                dnsDB.endBatch();
+            }
+            written = dnsDB.getSnapshot().version;
+            writtenCheckpoints = dnsDB.getCheckpoints();
+        }
+        log.info("Loaded {} entries from {} with checkpoints {}", contents.entries.size(), path, contents.checkpoints);
+        return contents.entries.size();
+    }
+
+    //Writes the file if the DnsDB changed since it was last written, and
+    //returns whether it did
+    synchronized boolean write() throws IOException {
+        List<DnsDB.Entry> entries;
+        long version;
+        Map<String, String> checkpoints;
+        synchronized (dnsDB) {
+            version = dnsDB.getSnapshot().version;
+            checkpoints = dnsDB.getCheckpoints();
+            if (version == written && checkpoints.equals(writtenCheckpoints))
+                return false;
+            entries = dnsDB.list();
+        }
+
+        Path tmp = Files.createTempFile(path.getParent(), FILE, ".tmp",
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        try {
+            Files.write(tmp, encode(entries, checkpoints));
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        written = version;
+        writtenCheckpoints = checkpoints;
+        log.debug("Wrote {} entries to {}", entries.size(), path);
+        return true;
+    }
+
+    private void tryWrite() {
+        try {
+            if (write())
+                writes.inc();
+        } catch (Exception e) {
+            writeErrors.inc();
+            log.warn("Unable to write DNS database to {}", path, e);
+        }
+    }
+
+    //Writes changes every interval seconds, and once more on shutdown
+    public void start() {
+        if (interval <= 0)
+            return;
+        Thread t = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(interval * 1000L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                tryWrite();
+            }
+        }, "dnsdb-store");
+        t.setDaemon(true);
+        t.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::tryWrite, "dnsdb-store-shutdown"));
+    }
+}
@@ -0,0 +1,173 @@
+package info.arhome.home.k8s.nsd4k;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+//Queues changes to the DnsDB and applies them on a thread of its own, in
+//batches that are published as one snapshot. A change queued while another
+//one for the same entry is still waiting replaces it, so a burst of watch
+//events for one object costs one update. Replacing an entry with one of the
+//same addresses does not touch the indexes. Checkpoints are applied after the
+//changes queued before them, so a checkpoint never runs ahead of the entries.
+//
+//The sweep at the end of a relist is queued too, and runs after the changes
+//queued before it and before those queued after it. Changes are only
+//coalesced with changes on the same side of a sweep.
+public class DnsDBUpdater {
+    private static final Logger log = LoggerFactory.getLogger(DnsDBUpdater.class);
+
+    public final DnsDB dnsDB;
+    //How long to gather changes before applying them
+    private final long batchMillis;
+
+    //Changes queued between two sweeps, and the sweep that follows them
+    static class Segment {
+        //Entry to the entry to store, or null to remove it, in queueing order
+        final LinkedHashMap<DnsDB.Entry, DnsDB.Entry> changes = new LinkedHashMap<>();
+        //Kind to sweep of every entry not in keep, or null if no sweep follows
+        String kind;
+        Set<DnsDB.Entry> keep;
+    }
+
+    //In queueing order; only the last one has no sweep yet
+    private List<Segment> pending = newPending();
+    //Resource to resourceVersion
+    private Map<String, String> pendingCheckpoints = new HashMap<>();
+
+    private static final Metrics.Counter batches = Metrics.counter("nsd4k_dnsdb_batches_total",
+            "Batches of changes applied to the DNS database");
+    private static final Metrics.Counter applied = Metrics.counter("nsd4k_dnsdb_changes_total",
+            "Changes applied to the DNS database", "result", "changed");
+    private static final Metrics.Counter unchanged = Metrics.counter("nsd4k_dnsdb_changes_total",
+            "Changes applied to the DNS database", "result", "unchanged");
+    private static final Metrics.Counter coalesced = Metrics.counter("nsd4k_dnsdb_changes_coalesced_total",
+            "Changes that replaced a queued change for the same entry");
+
+    public DnsDBUpdater(ConfigDto config, DnsDB _dnsDB) {
+        dnsDB = _dnsDB;
+        batchMillis = Math.max(config.dnsBatchMillis, 0);
+        Metrics.gauge("nsd4k_dnsdb_pending", "Changes waiting to be applied to the DNS database",
+                this::pendingCount);
+    }
+
+    public void start() {
+        Thread t = new Thread(this::run, "dnsdb-updater");
+        t.start();
+    }
+
+    private static List<Segment> newPending() {
+        List<Segment> result = new ArrayList<>();
+        result.add(new Segment());
+        return result;
+    }
+
+    //Changes and sweeps
+    public synchronized int pendingCount() {
+        int count = pending.size() - 1;
+        for (Segment segment : pending)
+            count += segment.changes.size();
+        return count;
+    }
+
+    private synchronized void queue(DnsDB.Entry key, DnsDB.Entry entry) {
+        //Keeps the original position, which does not matter for different keys
+        Segment last = pending.get(pending.size() - 1);
+        if (last.changes.containsKey(key))
+            coalesced.inc();
+        last.changes.put(key, entry);
+        notifyAll();
+    }
+
+    public void addreplace(DnsDB.Entry entry) {
+        queue(entry, entry);
+    }
+
+    public void remove(DnsDB.Entry entry) {
+        queue(entry, null);
+    }
+
+    public synchronized void checkpoint(String resource, String resourceVersion) {
+        pendingCheckpoints.put(resource, resourceVersion);
+        notifyAll();
+    }
+
+    //Removes every entry of the kind that is not in keep, once the changes
+    //queued so far are applied. Keep is copied.
+    public synchronized void retain(String kind, Set<? extends DnsDB.Entry> keep) {
+        Segment last = pending.get(pending.size() - 1);
+        last.kind = kind;
+        last.keep = new HashSet<>(keep);
+        pending.add(new Segment());
+        notifyAll();
+    }
+
+    private synchronized void awaitPending() throws InterruptedException {
+        while (pendingCount() == 0 && pendingCheckpoints.isEmpty())
+            wait();
+    }
+
+    void apply(List<Segment> batch, Map<String, String> checkpoints) {
+        synchronized (dnsDB) {
+            dnsDB.beginBatch();
+            try {
+                for (Segment segment : batch) {
+                    for (Map.Entry<DnsDB.Entry, DnsDB.Entry> oneChange : segment.changes.entrySet()) {
+                        boolean changed;
+                        if (oneChange.getValue() == null)
+                            changed = dnsDB.remove(oneChange.getKey());
+                        else
+                            changed = dnsDB.addreplace(oneChange.getValue());
+                        (changed ? applied : unchanged).inc();
+                    }
+                    if (segment.kind != null)
+                        applied.inc(dnsDB.retain(segment.kind, segment.keep));
+                }
+                for (Map.Entry<String, String> oneCheckpoint : checkpoints.entrySet())
+                    dnsDB.setCheckpoint(oneCheckpoint.getKey(), oneCheckpoint.getValue());
+            } finally {
+                dnsDB.endBatch();
+            }
+        }
+        batches.inc();
+    }
+
+    //Applies whatever is queued now. Only the updater thread calls this once
+    //started, which keeps batches in order.
+    void flush() {
+        List<Segment> batch;
+        Map<String, String> checkpoints;
+        synchronized (this) {
+            if (pendingCount() == 0 && pendingCheckpoints.isEmpty())
+                return;
+            batch = pending;
+            checkpoints = pendingCheckpoints;
+            pending = newPending();
+            pendingCheckpoints = new HashMap<>();
+        }
+        apply(batch, checkpoints);
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                awaitPending();
+                //Let the rest of a burst arrive
+                Thread.sleep(batchMillis);
+                flush();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("Unable to update DNS database", e);
+            }
+        }
+    }
+}
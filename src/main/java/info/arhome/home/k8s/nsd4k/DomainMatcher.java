@@ -0,0 +1,77 @@
+package info.arhome.home.k8s.nsd4k;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+//Suffix trie over the reversed labels of the configured domains
+public class DomainMatcher {
+    private static class Node {
+        byte[][] labels = new byte[0][];
+        Node[] children = new Node[0];
+        //Position of the domain ending here in config.domains, or -1
+        int domainIndex = -1;
+
+        Node child(byte[] name, int offset, int length) {
+            for (int i = 0; i < labels.length; i++) {
+                if (Arrays.equals(labels[i], 0, labels[i].length, name, offset, offset + length))
+                    return children[i];
+            }
+            return null;
+        }
+
+        Node addChild(byte[] label) {
+            Node child = new Node();
+            labels = Arrays.copyOf(labels, labels.length + 1);
+            labels[labels.length - 1] = label;
+            children = Arrays.copyOf(children, children.length + 1);
+            children[children.length - 1] = child;
+            return child;
+        }
+    }
+
+    private final Node root = new Node();
+
+    public DomainMatcher(String[] domains) {
+        for (int i = 0; i < domains.length; i++) {
+            String domain = domains[i].toLowerCase(Locale.ROOT);
+            if (domain.endsWith("."))
+                domain = domain.substring(0, domain.length() - 1);
+            if (domain.isEmpty())
+                continue;
+
+            String[] labels = domain.split("\\.");
+            Node node = root;
+            for (int j = labels.length - 1; j >= 0; j--) {
+                byte[] label = labels[j].getBytes(StandardCharsets.UTF_8);
+                Node child = node.child(label, 0, label.length);
+                if (child == null)
+                    child = node.addChild(label);
+                node = child;
+            }
+            if (node.domainIndex < 0)
+                node.domainIndex = i;
+        }
+    }
+
+    //Takes a lowercased wire-format name with the offsets of its labels, and
+    //returns the length of the part in front of the domain it falls under, or
+    //-1 if it is not under any domain. Like before, the domain listed first
+    //wins when several match.
+    public int match(byte[] name, int[] labelOffsets, int labelCount) {
+        Node node = root;
+        int best = -1;
+        int bestIndex = Integer.MAX_VALUE;
+        for (int i = labelCount - 1; i > 0; i--) {
+            int offset = labelOffsets[i];
+            node = node.child(name, offset + 1, name[offset]);
+            if (node == null)
+                break;
+            if (node.domainIndex >= 0 && node.domainIndex < bestIndex) {
+                bestIndex = node.domainIndex;
+                best = offset;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,240 @@
+package info.arhome.home.k8s.nsd4k;
+
+//Immutable hash map that shares structure with the map it was made from.
+//with() copies only the nodes on the path to the key, at most seven nodes
+//of at most 32 slots each, and leaves all the others shared. A snapshot
+//built from the previous one by a few changes thus costs in proportion to
+//those changes, not to the size of the map.
+//
+//It is a hash array mapped trie: each level takes five bits of the hash and
+//keeps only the slots in use, marked in a bitmap. A slot holds a leaf, a
+//node one level down, or, for keys with the same full hash, a collision.
+//A node left with a single leaf gives way to the leaf, so removals keep
+//paths short.
+public final class HashTrie<K, V> {
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private static final class Leaf {
+        final int hash;
+        final Object key;
+        final Object value;
+
+        Leaf(int _hash, Object _key, Object _value) {
+            hash = _hash;
+            key = _key;
+            value = _value;
+        }
+    }
+
+    private static final class Node {
+        final int bitmap;
+        final Object[] slots;
+
+        Node(int _bitmap, Object[] _slots) {
+            bitmap = _bitmap;
+            slots = _slots;
+        }
+    }
+
+    private static final class Collision {
+        final int hash;
+        final Leaf[] leaves;
+
+        Collision(int _hash, Leaf[] _leaves) {
+            hash = _hash;
+            leaves = _leaves;
+        }
+    }
+
+    private static final HashTrie<?, ?> EMPTY = new HashTrie<>(null, 0);
+
+    //Leaf, Node or Collision, or null when empty
+    private final Object root;
+    private final int size;
+
+    private HashTrie(Object _root, int _size) {
+        root = _root;
+        size = _size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> HashTrie<K, V> empty() {
+        return (HashTrie<K, V>) EMPTY;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    //Spreads the hash over all bits, since every level uses its own five
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    private static int index(int bitmap, int bit) {
+        return Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        int hash = hash(key);
+        Object slot = root;
+        int shift = 0;
+        while (slot instanceof Node node) {
+            int bit = bit(hash, shift);
+            if ((node.bitmap & bit) == 0)
+                return null;
+            slot = node.slots[index(node.bitmap, bit)];
+            shift += BITS;
+        }
+        if (slot instanceof Leaf leaf)
+            return leaf.hash == hash && leaf.key.equals(key) ? (V) leaf.value : null;
+        if (slot instanceof Collision collision && collision.hash == hash) {
+            for (Leaf leaf : collision.leaves) {
+                if (leaf.key.equals(key))
+                    return (V) leaf.value;
+            }
+        }
+        return null;
+    }
+
+    //A map with the key set to the value, or removed if the value is null
+    public HashTrie<K, V> with(K key, V value) {
+        int[] sizeChange = new int[1];
+        Object next = value == null
+                ? remove(root, 0, hash(key), key, sizeChange)
+                : put(root, 0, new Leaf(hash(key), key, value), sizeChange);
+        if (next == root)
+            return this;
+        return next == null ? empty() : new HashTrie<>(next, size + sizeChange[0]);
+    }
+
+    //A node, or a chain of them, holding two slots whose hashes differ
+    private static Node split(Object a, int hashA, Object b, int hashB, int shift) {
+        int bitA = bit(hashA, shift);
+        int bitB = bit(hashB, shift);
+        if (bitA == bitB)
+            return new Node(bitA, new Object[]{split(a, hashA, b, hashB, shift + BITS)});
+        //Slots go in bit order; as ints, the top bit would sort first
+        boolean aFirst = Integer.compareUnsigned(bitA, bitB) < 0;
+        return new Node(bitA | bitB, aFirst ? new Object[]{a, b} : new Object[]{b, a});
+    }
+
+    private static Object put(Object slot, int shift, Leaf leaf, int[] sizeChange) {
+        if (slot == null) {
+            sizeChange[0] = 1;
+            return leaf;
+        }
+        if (slot instanceof Node node) {
+            int bit = bit(leaf.hash, shift);
+            int i = index(node.bitmap, bit);
+            if ((node.bitmap & bit) == 0) {
+                Object[] slots = new Object[node.slots.length + 1];
+                System.arraycopy(node.slots, 0, slots, 0, i);
+                slots[i] = leaf;
+                System.arraycopy(node.slots, i, slots, i + 1, node.slots.length - i);
+                sizeChange[0] = 1;
+                return new Node(node.bitmap | bit, slots);
+            }
+            Object child = node.slots[i];
+            Object next = put(child, shift + BITS, leaf, sizeChange);
+            if (next == child)
+                return node;
+            Object[] slots = node.slots.clone();
+            slots[i] = next;
+            return new Node(node.bitmap, slots);
+        }
+        if (slot instanceof Leaf existing) {
+            if (existing.hash != leaf.hash) {
+                sizeChange[0] = 1;
+                return split(existing, existing.hash, leaf, leaf.hash, shift);
+            }
+            if (existing.key.equals(leaf.key))
+                return existing.value == leaf.value ? existing : leaf;
+            sizeChange[0] = 1;
+            return new Collision(leaf.hash, new Leaf[]{existing, leaf});
+        }
+        Collision collision = (Collision) slot;
+        if (collision.hash != leaf.hash) {
+            sizeChange[0] = 1;
+            return split(collision, collision.hash, leaf, leaf.hash, shift);
+        }
+        for (int i = 0; i < collision.leaves.length; i++) {
+            if (collision.leaves[i].key.equals(leaf.key)) {
+                if (collision.leaves[i].value == leaf.value)
+                    return collision;
+                Leaf[] leaves = collision.leaves.clone();
+                leaves[i] = leaf;
+                return new Collision(collision.hash, leaves);
+            }
+        }
+        Leaf[] leaves = new Leaf[collision.leaves.length + 1];
+        System.arraycopy(collision.leaves, 0, leaves, 0, collision.leaves.length);
+        leaves[collision.leaves.length] = leaf;
+        sizeChange[0] = 1;
+        return new Collision(collision.hash, leaves);
+    }
+
+    //Returns null when nothing is left
+    private static Object remove(Object slot, int shift, int hash, Object key, int[] sizeChange) {
+        if (slot == null)
+            return null;
+        if (slot instanceof Node node) {
+            int bit = bit(hash, shift);
+            if ((node.bitmap & bit) == 0)
+                return node;
+            int i = index(node.bitmap, bit);
+            Object child = node.slots[i];
+            Object next = remove(child, shift + BITS, hash, key, sizeChange);
+            if (next == child)
+                return node;
+            if (next == null) {
+                if (node.slots.length == 1)
+                    return null;
+                //What is left may be a lone leaf or collision, which can go up
+                if (node.slots.length == 2 && ! (node.slots[1 - i] instanceof Node))
+                    return node.slots[1 - i];
+                Object[] slots = new Object[node.slots.length - 1];
+                System.arraycopy(node.slots, 0, slots, 0, i);
+                System.arraycopy(node.slots, i + 1, slots, i, node.slots.length - i - 1);
+                return new Node(node.bitmap & ~bit, slots);
+            }
+            if (node.slots.length == 1 && ! (next instanceof Node))
+                return next;
+            Object[] slots = node.slots.clone();
+            slots[i] = next;
+            return new Node(node.bitmap, slots);
+        }
+        if (slot instanceof Leaf leaf) {
+            if (leaf.hash != hash || ! leaf.key.equals(key))
+                return leaf;
+            sizeChange[0] = -1;
+            return null;
+        }
+        Collision collision = (Collision) slot;
+        if (collision.hash != hash)
+            return collision;
+        for (int i = 0; i < collision.leaves.length; i++) {
+            if (collision.leaves[i].key.equals(key)) {
+                sizeChange[0] = -1;
+                if (collision.leaves.length == 2)
+                    return collision.leaves[1 - i];
+                Leaf[] leaves = new Leaf[collision.leaves.length - 1];
+                System.arraycopy(collision.leaves, 0, leaves, 0, i);
+                System.arraycopy(collision.leaves, i + 1, leaves, i, leaves.length - i);
+                return new Collision(collision.hash, leaves);
+            }
+        }
+        return collision;
+    }
+}
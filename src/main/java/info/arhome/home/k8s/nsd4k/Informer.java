@@ -0,0 +1,247 @@
+package info.arhome.home.k8s.nsd4k;
+
+import io.kubernetes.client.common.KubernetesListObject;
+import io.kubernetes.client.common.KubernetesObject;
+import io.kubernetes.client.openapi.ApiClient;
+import io.kubernetes.client.openapi.ApiException;
+import io.kubernetes.client.openapi.models.V1ListMeta;
+import io.kubernetes.client.openapi.models.V1ObjectMeta;
+import io.kubernetes.client.util.Watch;
+import okhttp3.Call;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+
+//Lists one kind of object and then watches it, keeping the objects that pass
+//the filter in a local cache and passing every change on to a handler. When
+//the watch ends or fails, it is resumed from the last resourceVersion seen,
+//after a growing delay if it failed. Only when that resourceVersion is gone
+//does it start over with a fresh list. Lists are fetched in pages
+//of pageSize objects, and the handler gets them page by page, so the whole
+//list is never in memory at once. Informers share the ApiClient they are
+//given, and with it its connection pool.
+public class Informer<T extends KubernetesObject> implements Runnable {
+    private static final Logger log = LoggerFactory.getLogger(Informer.class);
+
+    public interface Lister {
+        //Limit is null for everything at once
+        KubernetesListObject list(String continueToken, Integer limit) throws ApiException;
+    }
+
+    public interface WatchCall {
+        Call create(String resourceVersion) throws ApiException;
+    }
+
+    //Called on the informer thread, after the cache was updated
+    public interface Handler<T> {
+        //A fresh list begins; its pages follow, and then endList()
+        default void beginList() {
+        }
+        void onListPage(Collection<T> objects);
+        //The list is complete: whatever was not on it is gone
+        default void endList() {
+        }
+        void onEvent(K8sUtil.WatchEvent event, T object);
+        //Everything up to this resourceVersion was passed on
+        default void onResourceVersion(String resourceVersion) {
+        }
+    }
+
+    private final String resource;
+    private final ApiClient client;
+    private final Lister lister;
+    private final WatchCall watchCall;
+    //Watch.Response<T>, which generics cannot tell at runtime
+    private final Type responseType;
+    private final Handler<T> handler;
+    private final Predicate<T> filter;
+    private final int pageSize;
+    private final long retryMaxMillis;
+
+    //namespace/name to object
+    private final Map<String, T> cache = new ConcurrentHashMap<>();
+    private volatile boolean synced = false;
+    //Its resourceVersion is where the next watch starts, or null to list first
+    private final K8sUtil.WatchChecker<T> checker = new K8sUtil.WatchChecker<>();
+
+    private static final long RETRY_BASE_MILLIS = 1000;
+
+    private final Metrics.Counter watchReconnects;
+    private final Metrics.Counter listPages;
+    private final Metrics.Counter relists;
+
+    public Informer(String _resource, ApiClient _client, Lister _lister, WatchCall _watchCall, Type _responseType,
+                    Handler<T> _handler, Predicate<T> _filter, ConfigDto config) {
+        resource = _resource;
+        client = _client;
+        lister = _lister;
+        watchCall = _watchCall;
+        responseType = _responseType;
+        handler = _handler;
+        filter = _filter;
+        pageSize = config.listPageSize;
+        retryMaxMillis = Math.max(config.watchRetryMaxSeconds, 1) * 1000L;
+
+        watchReconnects = Metrics.counter("nsd4k_watch_reconnects_total",
+                "Watches started again after ending or failing", "resource", resource);
+        relists = Metrics.counter("nsd4k_relists_total", "Full lists, at startup or when the watch fell too far behind",
+                "resource", resource);
+        listPages = Metrics.counter("nsd4k_list_pages_total", "Pages fetched by lists", "resource", resource);
+        Metrics.gauge("nsd4k_informer_cached", "Objects in the informer cache", cache::size,
+                "resource", resource);
+    }
+
+    static String key(String namespace, String name) {
+        return namespace + "/" + name;
+    }
+
+    private static String key(KubernetesObject object) {
+        V1ObjectMeta metadata = object.getMetadata();
+        assert(metadata != null);
+        return key(metadata.getNamespace(), metadata.getName());
+    }
+
+    //The cached object, or null if there is none or nothing was listed yet
+    public T get(String namespace, String name) {
+        return cache.get(key(namespace, name));
+    }
+
+    public Collection<T> list() {
+        return cache.values();
+    }
+
+    //Whether the cache was filled by a list at least once
+    public boolean hasSynced() {
+        return synced;
+    }
+
+    //Starts with a watch from this resourceVersion instead of a list. The
+    //handler must already hold what it would have got up to there.
+    public void resume(String resourceVersion) {
+        checker.resourceVersion = resourceVersion;
+    }
+
+    //Returns the resourceVersion to watch from
+    String relist() throws ApiException {
+        log.info("List {}", resource);
+        handler.beginList();
+        Set<String> listed = new HashSet<>();
+        String continueToken = null;
+        String resourceVersion;
+        int pages = 0;
+        do {
+            KubernetesListObject page = lister.list(continueToken, pageSize > 0 ? pageSize : null);
+            V1ListMeta listMeta = page.getMetadata();
+            assert(listMeta != null);
+            //Every page is from the same snapshot, at the same resourceVersion
+            resourceVersion = listMeta.getResourceVersion();
+            continueToken = listMeta.getContinue();
+            pages++;
+            listPages.inc();
+
+            List<T> objects = new ArrayList<>();
+            for (KubernetesObject item : page.getItems()) {
+                @SuppressWarnings("unchecked")
+                T object = (T) item;
+                if (filter.test(object)) {
+                    String key = key(object);
+                    cache.put(key, object);
+                    listed.add(key);
+                    objects.add(object);
+                }
+            }
+            handler.onListPage(objects);
+        } while (continueToken != null && ! continueToken.isEmpty());
+
+        cache.keySet().retainAll(listed);
+        synced = true;
+        handler.endList();
+        log.info("List {} done: {} objects in {} pages", resource, listed.size(), pages);
+        return resourceVersion;
+    }
+
+    void apply(K8sUtil.WatchEvent event, T object) {
+        String key = key(object);
+        if (event == K8sUtil.WatchEvent.DELETED || ! filter.test(object))
+            cache.remove(key);
+        else
+            cache.put(key, object);
+        handler.onEvent(event, object);
+    }
+
+    //Watches until the watch ends or fails, from the last resourceVersion seen
+    void watch() {
+        log.info("Watch {} begin at {}", resource, checker.resourceVersion);
+        Call call;
+        try {
+            call = watchCall.create(checker.resourceVersion);
+        } catch (Exception e) {
+            throw new PrettyException("Failed to create watch call on " + resource,
+                    K8sUtil.processException(e));
+        }
+
+        try (Watch<T> watch = Watch.createWatch(client, call, responseType)) {
+            for (Watch.Response<T> response : watch) {
+                if (! checker.check(response))
+                    apply(checker.event, checker.object);
+                handler.onResourceVersion(checker.resourceVersion);
+            }
+        } catch (Exception e) {
+            throw new PrettyException("Failed to execute watch on " + resource, K8sUtil.processException(e));
+        }
+        log.info("Watch {} end", resource);
+    }
+
+    //Exponential in the number of failures in a row, and jittered so that
+    //informers failing together do not retry together
+    static long retryDelay(int failures, long maxMillis) {
+        long delay = Math.min(RETRY_BASE_MILLIS << Math.min(failures - 1, 20), maxMillis);
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    @Override
+    public void run() {
+        //Kubernetes watch loop. A watch that ends or fails is resumed where it
+        //was; only a resourceVersion that is gone makes it list again.
+        int failures = 0;
+        while (true) {
+            try {
+                if (checker.resourceVersion == null) {
+                    relists.inc();
+                    checker.resourceVersion = relist();
+                    handler.onResourceVersion(checker.resourceVersion);
+                }
+                watch();
+                failures = 0;
+            } catch (Exception e) {
+                //A list that fails, even as gone, is retried like any failure
+                if (K8sUtil.isGone(e) && checker.resourceVersion != null) {
+                    log.info("Watch {} at {} is too old, listing again", resource, checker.resourceVersion);
+                    checker.resourceVersion = null;
+                    failures = 0;
+                } else {
+                    failures++;
+                    long delay = retryDelay(failures, retryMaxMillis);
+                    log.error("Loop iteration on {} failed, retrying in {} ms", resource, delay, e);
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException ie) {
+                        throw new PrettyException("Thread.sleep failed", ie);
+                    }
+                }
+            }
+            watchReconnects.inc();
+        }
+    }
+}
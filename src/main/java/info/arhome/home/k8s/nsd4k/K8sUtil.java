@@ -2,6 +2,7 @@ package info.arhome.home.k8s.nsd4k;
 
 import io.kubernetes.client.common.KubernetesObject;
 import io.kubernetes.client.openapi.ApiException;
+import io.kubernetes.client.openapi.models.V1Status;
 import io.kubernetes.client.util.Watch;
 
 import java.util.ArrayList;
@@ -54,6 +55,38 @@ public class K8sUtil {
         }
     }
 
+    private static final int HTTP_NOT_FOUND = 404;
+    private static final int HTTP_GONE = 410;
+
+    //The resourceVersion is too old to watch from: only a fresh list helps
+    public static class GoneException extends PrettyException {
+        private static final long serialVersionUID = 1L;
+
+        public GoneException(String msg) {
+            super(msg);
+        }
+    }
+
+    //Whether e, or what caused it, says the resourceVersion is gone
+    public static boolean isGone(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof GoneException)
+                return true;
+            if (cause instanceof ApiException apie && apie.getCode() == HTTP_GONE)
+                return true;
+        }
+        return false;
+    }
+
+    //Whether e, or what caused it, says the object does not exist
+    public static boolean isNotFound(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ApiException apie && apie.getCode() == HTTP_NOT_FOUND)
+                return true;
+        }
+        return false;
+    }
+
     public static class WatchChecker<T extends KubernetesObject> {
         public String resourceVersion;
         public T object;
@@ -61,7 +94,10 @@ public class K8sUtil {
         public boolean check(Watch.Response<T> objectResponse) {
             event = WatchEvent.get(objectResponse.type);
             if (event == WatchEvent.ERROR) {
-                throw new PrettyException(objectResponse.status.toString());
+                V1Status status = objectResponse.status;
+                if (status != null && status.getCode() != null && status.getCode() == HTTP_GONE)
+                    throw new GoneException(status.toString());
+                throw new PrettyException(String.valueOf(status));
             }
             object = objectResponse.object;
             resourceVersion = object.getMetadata().getResourceVersion();
@@ -0,0 +1,133 @@
+package info.arhome.home.k8s.nsd4k;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+//Key pairs generated ahead of time by a low-priority background thread, so
+//that issuing a certificate only has to sign. When the pool is empty, take()
+//generates the key pair itself.
+public class KeyPairPool {
+    public enum Algorithm {
+        RSA_2048("rsa2048", "RSA", 2048),
+        RSA_3072("rsa3072", "RSA", 3072),
+        RSA_4096("rsa4096", "RSA", 4096),
+        EC_P256("ec256", "EC", 256),
+        EC_P384("ec384", "EC", 384),
+        ED25519("ed25519", "Ed25519", 255);
+
+        public final String string;
+        //JCA key algorithm and key size in bits
+        public final String keyAlgorithm;
+        public final int size;
+        Algorithm(String _string, String _keyAlgorithm, int _size) {
+            string = _string;
+            keyAlgorithm = _keyAlgorithm;
+            size = _size;
+        }
+
+        public static Algorithm get(String string) {
+            for (Algorithm algorithm : Algorithm.values()) {
+                if (algorithm.string.equals(string))
+                    return algorithm;
+            }
+            throw new PrettyException("Unrecognized key algorithm " + string);
+        }
+
+        //Algorithm of an existing key, or null if it is none of ours
+        public static Algorithm of(PublicKey key) {
+            for (Algorithm algorithm : Algorithm.values()) {
+                if (algorithm.matches(key))
+                    return algorithm;
+            }
+            return null;
+        }
+
+        private boolean matches(PublicKey key) {
+            if (key instanceof RSAPublicKey rsa)
+                return keyAlgorithm.equals("RSA") && rsa.getModulus().bitLength() == size;
+            if (key instanceof ECPublicKey ec)
+                return keyAlgorithm.equals("EC") && ec.getParams().getCurve().getField().getFieldSize() == size;
+            return keyAlgorithm.equals("Ed25519")
+                    && (key.getAlgorithm().equals("Ed25519") || key.getAlgorithm().equals("EdDSA"));
+        }
+
+        public KeyPair generate() throws GeneralSecurityException {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance(keyAlgorithm);
+            if (keyAlgorithm.equals("RSA"))
+                generator.initialize(size);
+            else if (keyAlgorithm.equals("EC"))
+                generator.initialize(new ECGenParameterSpec("secp" + size + "r1"));
+            return generator.generateKeyPair();
+        }
+
+        //Algorithm a CA with a key of this type signs with
+        public String signatureAlgorithm() {
+            switch (keyAlgorithm) {
+                case "EC":
+                    return size > 256 ? "SHA384withECDSA" : "SHA256withECDSA";
+                case "Ed25519":
+                    return "Ed25519";
+                default:
+                    return "SHA256withRSA";
+            }
+        }
+    }
+
+    public final Algorithm algorithm;
+    private final BlockingQueue<KeyPair> pool;
+
+    private final Metrics.Counter hits;
+    private final Metrics.Counter misses;
+
+    public KeyPairPool(Algorithm _algorithm, int size) {
+        algorithm = _algorithm;
+        pool = new ArrayBlockingQueue<>(Math.max(size, 1));
+
+        hits = Metrics.counter("nsd4k_key_pool_takes_total", "Key pairs taken for certificates",
+                "algorithm", algorithm.string, "result", "hit");
+        misses = Metrics.counter("nsd4k_key_pool_takes_total", "Key pairs taken for certificates",
+                "algorithm", algorithm.string, "result", "miss");
+        Metrics.gauge("nsd4k_key_pool_size", "Key pairs ready in the pool", pool::size,
+                "algorithm", algorithm.string);
+
+        if (size > 0) {
+            Thread t = new Thread(this::refill, "keypool-" + algorithm.string);
+            t.setPriority(Thread.MIN_PRIORITY);
+            //Holds nothing that must survive shutdown
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    private void refill() {
+        try {
+            while (true)
+                pool.put(algorithm.generate());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (GeneralSecurityException e) {
+            throw new PrettyException("Unable to generate " + algorithm.string + " key pair", e);
+        }
+    }
+
+    public int size() {
+        return pool.size();
+    }
+
+    public KeyPair take() throws GeneralSecurityException {
+        KeyPair keyPair = pool.poll();
+        if (keyPair != null) {
+            hits.inc();
+            return keyPair;
+        }
+        misses.inc();
+        return algorithm.generate();
+    }
+}
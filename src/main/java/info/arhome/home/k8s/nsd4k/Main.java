@@ -5,6 +5,9 @@ import java.nio.file.Paths;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import io.kubernetes.client.openapi.ApiClient;
+import io.kubernetes.client.util.Config;
+
 public class Main {
     public static void main(String[] args) {
         //Load configuration
@@ -21,21 +24,49 @@ public class Main {
         }
 
         final DnsDB dnsDB = new DnsDB();
+        //Serve what was known before the restart until the lists are done
+        final DnsDBStore store = new DnsDBStore(config, dnsDB);
+        store.load();
+        store.start();
+        Metrics.gauge("nsd4k_dnsdb_entries", "Entries in the DNS database",
+                () -> dnsDB.getSnapshot().entries);
+        Metrics.gauge("nsd4k_dnsdb_names", "Names with at least one address",
+                () -> dnsDB.getSnapshot().names());
+        if (config.metricsListen != null) {
+            try {
+                Metrics.serve(config.metricsListen.addr, config.metricsListen.port);
+            } catch (Exception e) {
+                throw new RuntimeException("Unable to serve metrics", e);
+            }
+        }
+
         try {
             new DnsServer(config, dnsDB);
         } catch (Exception e) {
             throw new RuntimeException("Unable to create DnsServer", e);
         }
 
+        //Shared by all watches, so that they use one connection pool
+        final ApiClient client;
+        try {
+            client = Config.defaultClient();
+        } catch (Exception e) {
+            throw new RuntimeException("Unable to connect to apiserver", e);
+        }
+
+        //Watch events reach the DnsDB through this
+        final DnsDBUpdater updates = new DnsDBUpdater(config, dnsDB);
+        updates.start();
+
         try {
-            Thread t = new Thread(new ConfigMapThread(config, dnsDB));
+            Thread t = new Thread(new ConfigMapThread(config, updates, client));
             t.start();
         } catch(Exception e) {
             throw new RuntimeException("Unable to create ConfigMapThread", e);
         }
 
         try {
-            new ServiceThread(config, dnsDB).run();
+            new ServiceThread(config, updates, client).run();
         } catch(Exception e) {
             throw new RuntimeException("Unable to create NamingThread", e);
         }
@@ -0,0 +1,191 @@
+package info.arhome.home.k8s.nsd4k;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+//Process-wide counters, gauges and histograms, exported in the Prometheus text
+//format. Recording only touches LongAdders, so it is cheap enough for the
+//query path; look the series up once and keep it.
+public class Metrics {
+    private static final Logger log = LoggerFactory.getLogger(Metrics.class);
+
+    //Histogram bounds in seconds
+    public static final double[] LATENCY_BUCKETS = {
+            0.000005, 0.00001, 0.000025, 0.00005, 0.0001, 0.00025, 0.0005,
+            0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25};
+    public static final double[] SLOW_BUCKETS = {
+            0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+
+    public static class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void inc(long n) {
+            value.add(n);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    public static class Histogram {
+        private final double[] bounds;
+        private final long[] boundsNanos;
+        //One more than the bounds, for +Inf
+        private final LongAdder[] counts;
+        private final LongAdder sumNanos = new LongAdder();
+
+        private Histogram(double[] _bounds) {
+            bounds = _bounds;
+            boundsNanos = new long[bounds.length];
+            counts = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < bounds.length; i++)
+                boundsNanos[i] = (long) (bounds[i] * 1e9);
+            for (int i = 0; i < counts.length; i++)
+                counts[i] = new LongAdder();
+        }
+
+        public void record(long nanos) {
+            int i = 0;
+            while (i < boundsNanos.length && nanos > boundsNanos[i])
+                i++;
+            counts[i].increment();
+            sumNanos.add(nanos);
+        }
+
+        public long count() {
+            long result = 0;
+            for (LongAdder count : counts)
+                result += count.sum();
+            return result;
+        }
+    }
+
+    private static class Family {
+        final String help;
+        final String type;
+        //Label string, as written between braces, to Counter, Histogram or LongSupplier
+        final Map<String, Object> series = new LinkedHashMap<>();
+
+        Family(String _help, String _type) {
+            help = _help;
+            type = _type;
+        }
+    }
+
+    private static final Map<String, Family> families = new LinkedHashMap<>();
+
+    private static String labelString(String... labels) {
+        if (labels.length % 2 != 0)
+            throw new IllegalArgumentException("Labels must be name/value pairs");
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0)
+                result.append(',');
+            String value = labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+            result.append(labels[i]).append("=\"").append(value).append('"');
+        }
+        return result.toString();
+    }
+
+    private static synchronized Object register(String name, String help, String type,
+                                                String[] labels, Object series, boolean replace) {
+        Family family = families.computeIfAbsent(name, k -> new Family(help, type));
+        if (!family.type.equals(type))
+            throw new IllegalArgumentException("Metric " + name + " is a " + family.type);
+        String key = labelString(labels);
+        if (replace) {
+            family.series.put(key, series);
+            return series;
+        }
+        Object existing = family.series.putIfAbsent(key, series);
+        return existing != null ? existing : series;
+    }
+
+    //Returns the counter with these labels, creating it on first use
+    public static Counter counter(String name, String help, String... labels) {
+        return (Counter) register(name, help, "counter", labels, new Counter(), false);
+    }
+
+    public static Histogram histogram(String name, String help, double[] bounds, String... labels) {
+        return (Histogram) register(name, help, "histogram", labels, new Histogram(bounds), false);
+    }
+
+    //The value is read at scrape time; registering again replaces the supplier
+    public static void gauge(String name, String help, LongSupplier value, String... labels) {
+        register(name, help, "gauge", labels, value, true);
+    }
+
+    private static String withLabels(String name, String labels, String extra) {
+        if (labels.isEmpty() && extra.isEmpty())
+            return name;
+        if (labels.isEmpty() || extra.isEmpty())
+            return name + "{" + labels + extra + "}";
+        return name + "{" + labels + "," + extra + "}";
+    }
+
+    public static synchronized String scrape() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Family> oneFamily : families.entrySet()) {
+            String name = oneFamily.getKey();
+            Family family = oneFamily.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+
+            for (Map.Entry<String, Object> oneSeries : family.series.entrySet()) {
+                String labels = oneSeries.getKey();
+                Object series = oneSeries.getValue();
+                if (series instanceof Counter counter) {
+                    out.append(withLabels(name, labels, "")).append(' ').append(counter.get()).append('\n');
+                } else if (series instanceof LongSupplier gauge) {
+                    out.append(withLabels(name, labels, "")).append(' ').append(gauge.getAsLong()).append('\n');
+                } else if (series instanceof Histogram histogram) {
+                    long cumulative = 0;
+                    for (int i = 0; i < histogram.counts.length; i++) {
+                        cumulative += histogram.counts[i].sum();
+                        String le = i < histogram.bounds.length ? Double.toString(histogram.bounds[i]) : "+Inf";
+                        out.append(withLabels(name + "_bucket", labels, "le=\"" + le + "\""))
+                                .append(' ').append(cumulative).append('\n');
+                    }
+                    out.append(withLabels(name + "_sum", labels, "")).append(' ')
+                            .append(histogram.sumNanos.sum() / 1e9).append('\n');
+                    out.append(withLabels(name + "_count", labels, "")).append(' ')
+                            .append(cumulative).append('\n');
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    //Serves scrape() on /metrics
+    public static void serve(String addrStr, int port) throws IOException {
+        InetAddress addr = InetAddress.getByName(addrStr);
+        HttpServer server = HttpServer.create(new InetSocketAddress(addr, port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        log.info("metrics on {}#{}/metrics", addr.getHostAddress(), port);
+    }
+}
@@ -0,0 +1,72 @@
+package info.arhome.home.k8s.nsd4k;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+//Lowercased wire-format name without the root label, used as a hash key.
+//Lookups reuse one probe per thread pointing into the query buffer, so no
+//key is built per query.
+public class NameKey {
+    private byte[] bytes;
+    private int offset;
+    private int length;
+    private int hash;
+
+    //Creates a probe, to be pointed at a name with set()
+    public NameKey() {
+    }
+
+    public NameKey set(byte[] _bytes, int _offset, int _length) {
+        bytes = _bytes;
+        offset = _offset;
+        length = _length;
+
+        int h = 1;
+        for (int i = offset; i < offset + length; i++)
+            h = 31 * h + bytes[i];
+        hash = h;
+        return this;
+    }
+
+    //Returns null if the name cannot be looked up with DNS
+    public static NameKey fromString(String name) {
+        byte[] out = new byte[Query.MAX_NAME_LENGTH];
+        int pos = 0;
+        for (String label : name.toLowerCase(Locale.ROOT).split("\\.", -1)) {
+            byte[] labelBytes = label.getBytes(StandardCharsets.UTF_8);
+            if (labelBytes.length == 0 || labelBytes.length > 63 || pos + labelBytes.length + 1 >= out.length)
+                return null;
+            out[pos++] = (byte) labelBytes.length;
+            System.arraycopy(labelBytes, 0, out, pos, labelBytes.length);
+            pos += labelBytes.length;
+        }
+        return new NameKey().set(Arrays.copyOf(out, pos), 0, pos);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object _other) {
+        if (_other instanceof NameKey other)
+            return Arrays.equals(bytes, offset, offset + length, other.bytes, other.offset, other.offset + other.length);
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        int pos = offset;
+        while (pos < offset + length) {
+            if (pos > offset)
+                builder.append('.');
+            int labelLength = bytes[pos];
+            builder.append(new String(bytes, pos + 1, labelLength, StandardCharsets.UTF_8));
+            pos += labelLength + 1;
+        }
+        return builder.toString();
+    }
+}
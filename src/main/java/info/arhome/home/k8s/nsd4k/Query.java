@@ -0,0 +1,122 @@
+package info.arhome.home.k8s.nsd4k;
+
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Type;
+
+import java.nio.ByteBuffer;
+
+//Decoder for the common query: one uncompressed question, optionally followed
+//by an OPT record and nothing else. Reused for every packet on a thread;
+//parse() rejects anything it does not understand so that the caller can fall
+//back to dnsjava.
+public class Query {
+    static final int HEADER_LENGTH = 12;
+    static final int MAX_NAME_LENGTH = 255;
+
+    private static final int FLAG_QR = 0x8000;
+    private static final int OPCODE_MASK = 0x7800;
+    private static final int RCODE_MASK = 0x000f;
+    private static final int FLAG_RD = 0x0100;
+
+    public int id;
+    public int flags;
+    //Question name in wire format, lowercased
+    public final byte[] name = new byte[MAX_NAME_LENGTH];
+    public int nameLength;
+    //Where each label of the name starts, not counting the root label
+    public final int[] labelOffsets = new int[MAX_NAME_LENGTH / 2];
+    public int labelCount;
+    //Probe for looking the name up in the snapshot
+    public final NameKey key = new NameKey();
+    public int type;
+    public int dclass;
+    //End of the question section, relative to the start of the message
+    public int questionEnd;
+    public boolean edns;
+    public int payloadSize;
+
+    public boolean parse(ByteBuffer in) {
+        int start = in.position();
+        int length = in.remaining();
+        if (length < HEADER_LENGTH)
+            return false;
+
+        id = in.getShort(start) & 0xffff;
+        flags = in.getShort(start + 2) & 0xffff;
+        if ((flags & (FLAG_QR | OPCODE_MASK | RCODE_MASK)) != 0)
+            return false;
+        int qdcount = in.getShort(start + 4) & 0xffff;
+        int ancount = in.getShort(start + 6) & 0xffff;
+        int nscount = in.getShort(start + 8) & 0xffff;
+        int arcount = in.getShort(start + 10) & 0xffff;
+        if (qdcount != 1 || ancount != 0 || nscount != 0 || arcount > 1)
+            return false;
+
+        //Question
+        int pos = HEADER_LENGTH;
+        nameLength = 0;
+        labelCount = 0;
+        while (true) {
+            if (pos >= length)
+                return false;
+            int labelLength = in.get(start + pos) & 0xff;
+            if (labelLength > 63 || nameLength + labelLength + 1 > MAX_NAME_LENGTH)
+                return false;
+            if (labelLength != 0)
+                labelOffsets[labelCount++] = nameLength;
+            name[nameLength++] = (byte) labelLength;
+            pos++;
+            if (labelLength == 0)
+                break;
+            if (pos + labelLength > length)
+                return false;
+            for (int i = 0; i < labelLength; i++) {
+                byte c = in.get(start + pos + i);
+                if (c >= 'A' && c <= 'Z')
+                    c += 'a' - 'A';
+                name[nameLength++] = c;
+            }
+            pos += labelLength;
+        }
+        if (pos + 4 > length)
+            return false;
+        type = in.getShort(start + pos) & 0xffff;
+        dclass = in.getShort(start + pos + 2) & 0xffff;
+        pos += 4;
+        questionEnd = pos;
+
+        //OPT record
+        edns = false;
+        payloadSize = 0;
+        if (arcount == 1) {
+            if (pos + 11 > length || in.get(start + pos) != 0)
+                return false;
+            int optType = in.getShort(start + pos + 1) & 0xffff;
+            int version = in.get(start + pos + 6) & 0xff;
+            if (optType != Type.OPT || version != 0)
+                return false;
+            payloadSize = in.getShort(start + pos + 3) & 0xffff;
+            int rdlength = in.getShort(start + pos + 9) & 0xffff;
+            pos += 11 + rdlength;
+            if (pos > length)
+                return false;
+            edns = true;
+        }
+
+        return pos == length;
+    }
+
+    public boolean recursionDesired() {
+        return (flags & FLAG_RD) != 0;
+    }
+
+    //Loads a name parsed by dnsjava, for queries that took the slow path
+    public void setName(Name _name) {
+        byte[] wire = _name.toWireCanonical();
+        System.arraycopy(wire, 0, name, 0, wire.length);
+        nameLength = wire.length;
+        labelCount = 0;
+        for (int pos = 0; name[pos] != 0; pos += name[pos] + 1)
+            labelOffsets[labelCount++] = pos;
+    }
+}
@@ -0,0 +1,378 @@
+package info.arhome.home.k8s.nsd4k;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.xbill.DNS.AAAARecord;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Header;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.OPTRecord;
+import org.xbill.DNS.Opcode;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.TSIGRecord;
+import org.xbill.DNS.Type;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class Resolver {
+    static final Logger log = LoggerFactory.getLogger(Resolver.class);
+
+    public static final int EDNS_PAYLOAD_SIZE = 4096;
+
+    private static final int HEADER_LENGTH = 12;
+    private static final int OPT_LENGTH = 11;
+
+    private static final int FLAG_QR = 0x8000;
+    private static final int OPCODE_MASK = 0x7800;
+    private static final int FLAG_TC = 0x0200;
+    private static final int FLAG_RD = 0x0100;
+
+    final ConfigDto config;
+    final DnsDB dnsDB;
+    final DomainMatcher domains;
+    final AnswerOrder answerOrder;
+
+    enum AnswerOrder {
+        FIXED("fixed"),
+        RANDOM("random"),
+        ROUND_ROBIN("roundrobin");
+
+        public final String string;
+        AnswerOrder(String _string) {
+            string = _string;
+        }
+
+        public static AnswerOrder get(String string) {
+            for (AnswerOrder order : AnswerOrder.values()) {
+                if (order.string.equals(string))
+                    return order;
+            }
+            throw new PrettyException("Unrecognized answer order " + string);
+        }
+    }
+
+    private final ThreadLocal<Query> queries = ThreadLocal.withInitial(Query::new);
+
+    private static final Metrics.Histogram replyTime = Metrics.histogram("nsd4k_dns_reply_seconds",
+            "Time spent generating a reply", Metrics.LATENCY_BUCKETS);
+    private static final Metrics.Counter[] rcodes = new Metrics.Counter[16];
+    private static final Metrics.Counter truncated = Metrics.counter("nsd4k_dns_udp_truncated_total",
+            "UDP replies sent with the TC flag");
+    static {
+        for (int i = 0; i < rcodes.length; i++)
+            rcodes[i] = Metrics.counter("nsd4k_dns_replies_total", "Replies by rcode", "rcode", Rcode.string(i));
+    }
+
+    public Resolver(ConfigDto _config, DnsDB _dnsDB) {
+        config = _config;
+        dnsDB = _dnsDB;
+        domains = new DomainMatcher(config.domains);
+        answerOrder = AnswerOrder.get(config.answerOrder);
+    }
+
+    //Number of records to skip before the first one in the response, to
+    //spread clients over the addresses
+    private int rotation(Answer answer) {
+        switch (answerOrder) {
+            case ROUND_ROBIN:
+                return answer.nextRotation();
+            case RANDOM:
+                return ThreadLocalRandom.current().nextInt() & Integer.MAX_VALUE;
+            default:
+                return 0;
+        }
+    }
+
+    Answer lookup(Query query) {
+        int prefixLength = domains.match(query.name, query.labelOffsets, query.labelCount);
+        if (prefixLength < 0)
+            return null;
+        return dnsDB.getSnapshot().getAnswer(query.key.set(query.name, 0, prefixLength));
+    }
+
+    private byte addAnswer(Message response, Name name, int type, int dclass, Answer answer) {
+        byte rcode = Rcode.NOERROR;
+        boolean nameExists = false;
+
+        if (answer != null) {
+            try {
+                //Successful lookup
+                List<Record> records = new ArrayList<>();
+
+                int rotation = rotation(answer);
+                for (int recordType : new int[]{Type.A, Type.AAAA}) {
+                    if (type == recordType || type == Type.ANY) {
+                        int count = answer.count(recordType);
+                        for (int i = 0; i < count; i++) {
+                            int index = (rotation + i) % count;
+                            InetAddress addr = InetAddress.getByAddress(answer.rdata(recordType, index));
+                            if (recordType == Type.A)
+                                records.add(new ARecord(name, dclass, Answer.TTL, addr));
+                            else
+                                records.add(new AAAARecord(name, dclass, Answer.TTL, addr));
+                        }
+                    }
+                }
+
+                for (Record r : records) {
+                    response.addRecord(r, Section.ANSWER);
+                }
+                nameExists = true;
+            } catch (Exception e) {
+                log.error("addAnswer: exception", e);
+            }
+        }
+
+        if (!nameExists) {
+            //NXDOMAIN
+            response.getHeader().setRcode(Rcode.NXDOMAIN);
+            rcode = Rcode.NXDOMAIN;
+        }
+
+        return rcode;
+    }
+
+    //Returns the end of the question section relative to the start of the
+    //message, or -1 if the question name is compressed or runs past the message
+    static int questionEnd(ByteBuffer in) {
+        int start = in.position();
+        int length = in.remaining();
+        int pos = HEADER_LENGTH;
+        while (pos < length) {
+            int labelLength = in.get(start + pos) & 0xff;
+            if (labelLength == 0) {
+                pos += 5;
+                return pos <= length ? pos : -1;
+            }
+            if (labelLength > 63)
+                return -1;
+            pos += labelLength + 1;
+        }
+        return -1;
+    }
+
+    //Builds the response out of the precompiled records, echoing the question
+    //straight from the query bytes
+    private void encodeReply(int id, boolean rd, ByteBuffer in, int questionEnd, ByteBuffer out,
+                             Answer answer, int type, boolean edns, int maxLength) {
+        int rcode = Rcode.NOERROR;
+        int aCount = 0;
+        int aaaaCount = 0;
+        if (answer == null) {
+            rcode = Rcode.NXDOMAIN;
+        } else {
+            if (type == Type.A || type == Type.ANY)
+                aCount = answer.aCount;
+            if (type == Type.AAAA || type == Type.ANY)
+                aaaaCount = answer.aaaaCount;
+        }
+
+        int flags = FLAG_QR | rcode;
+        if (rd)
+            flags |= FLAG_RD;
+
+        int optLength = edns ? OPT_LENGTH : 0;
+        int length = questionEnd + aCount * Answer.A_LENGTH + aaaaCount * Answer.AAAA_LENGTH + optLength;
+        if (length > maxLength) {
+            flags |= FLAG_TC;
+            aCount = 0;
+            aaaaCount = 0;
+        }
+
+        out.putShort((short) id);
+        out.putShort((short) flags);
+        out.putShort((short) 1);
+        out.putShort((short) (aCount + aaaaCount));
+        out.putShort((short) 0);
+        out.putShort((short) (edns ? 1 : 0));
+        int questionLength = questionEnd - HEADER_LENGTH;
+        out.put(out.position(), in, in.position() + HEADER_LENGTH, questionLength);
+        out.position(out.position() + questionLength);
+
+        if (aCount > 0 || aaaaCount > 0) {
+            int rotation = rotation(answer);
+            if (aCount > 0)
+                answer.write(out, Type.A, rotation);
+            if (aaaaCount > 0)
+                answer.write(out, Type.AAAA, rotation);
+        }
+
+        if (edns) {
+            out.put((byte) 0);
+            out.putShort((short) Type.OPT);
+            out.putShort((short) EDNS_PAYLOAD_SIZE);
+            out.putInt(0);
+            out.putShort((short) 0);
+        }
+    }
+
+    private static int maxLength(boolean tcp, boolean edns, int payloadSize, ByteBuffer out) {
+        int maxLength;
+        if (tcp) {
+            maxLength = 65535;
+        } else if (edns) {
+            maxLength = Math.max(payloadSize, 512);
+        } else {
+            maxLength = 512;
+        }
+        return Math.min(maxLength, out.remaining());
+    }
+
+    //Writes the reply to the query between the position and the limit of 'in'
+    //into 'out'. Returns false if there is nothing to send back.
+    boolean generateReply(ByteBuffer in, ByteBuffer out, boolean tcp) {
+        long begin = System.nanoTime();
+        int start = out.position();
+        boolean result = reply(in, out, tcp);
+        replyTime.record(System.nanoTime() - begin);
+
+        if (result && out.position() - start >= HEADER_LENGTH) {
+            int flags = out.getShort(start + 2);
+            rcodes[flags & 0xf].inc();
+            if (!tcp && (flags & FLAG_TC) != 0)
+                truncated.inc();
+        }
+        return result;
+    }
+
+    private boolean reply(ByteBuffer in, ByteBuffer out, boolean tcp) {
+        int start = out.position();
+
+        //Fast path for plain queries
+        Query fastQuery = queries.get();
+        if (fastQuery.parse(in) && fastQuery.dclass == DClass.IN
+                && (Type.isRR(fastQuery.type) || fastQuery.type == Type.ANY)) {
+            encodeReply(fastQuery.id, fastQuery.recursionDesired(), in, fastQuery.questionEnd, out,
+                    lookup(fastQuery), fastQuery.type, fastQuery.edns,
+                    maxLength(tcp, fastQuery.edns, fastQuery.payloadSize, out));
+            return true;
+        }
+
+        Message query;
+        try {
+            query = new Message(in.duplicate());
+        } catch (IOException e) {
+            return formerrMessage(in, out);
+        }
+
+        byte[] response = generateReply(query, in, out, tcp);
+        if (response != null)
+            out.put(response);
+        return out.position() > start;
+    }
+
+    //Returns the reply if dnsjava built it, or null if it was written to 'out'
+    private byte[] generateReply(Message query, ByteBuffer in, ByteBuffer out, boolean tcp) {
+        Header header;
+        int maxLength;
+
+        header = query.getHeader();
+        if (header.getFlag(Flags.QR)) {
+            return null;
+        }
+        if (header.getRcode() != Rcode.NOERROR) {
+            return errorMessage(query, Rcode.FORMERR);
+        }
+        if (header.getOpcode() != Opcode.QUERY) {
+            return errorMessage(query, Rcode.NOTIMP);
+        }
+
+        org.xbill.DNS.Record queryRecord = query.getQuestion();
+        if (queryRecord == null) {
+            return errorMessage(query, Rcode.FORMERR);
+        }
+
+        //TSIG not supported
+        TSIGRecord queryTSIG = query.getTSIG();
+        if (queryTSIG != null) {
+            formerrMessage(in, out);
+            return null;
+        }
+
+        OPTRecord queryOPT = query.getOPT();
+        maxLength = maxLength(tcp, queryOPT != null, queryOPT != null ? queryOPT.getPayloadSize() : 0, out);
+
+        Name name = queryRecord.getName();
+        int type = queryRecord.getType();
+        int dclass = queryRecord.getDClass();
+
+        if (!Type.isRR(type) && type != Type.ANY) {
+            return errorMessage(query, Rcode.NOTIMP);
+        }
+
+        Query nameQuery = queries.get();
+        nameQuery.setName(name);
+        Answer answer = lookup(nameQuery);
+
+        int questionEnd = questionEnd(in);
+        if (dclass == DClass.IN && questionEnd > 0) {
+            encodeReply(header.getID(), header.getFlag(Flags.RD), in, questionEnd, out,
+                    answer, type, queryOPT != null, maxLength);
+            return null;
+        }
+
+        //Unusual query, let dnsjava build the response
+        Message response = new Message(query.getHeader().getID());
+        response.getHeader().setFlag(Flags.QR);
+        if (query.getHeader().getFlag(Flags.RD)) {
+            response.getHeader().setFlag(Flags.RD);
+        }
+        response.addRecord(queryRecord, Section.QUESTION);
+
+        byte rcode = addAnswer(response, name, type, dclass, answer);
+        if (rcode != Rcode.NOERROR && rcode != Rcode.NXDOMAIN) {
+            return errorMessage(query, rcode);
+        }
+
+        if (queryOPT != null) {
+            OPTRecord opt = new OPTRecord(EDNS_PAYLOAD_SIZE, 0, 0, 0);
+            response.addRecord(opt, Section.ADDITIONAL);
+        }
+
+        return response.toWire(maxLength);
+    }
+
+    private byte[] buildErrorMessage(Header header, int rcode, Record question) {
+        Message response = new Message();
+        response.setHeader(header);
+        for (int i = 0; i < 4; i++) {
+            response.removeAllRecords(i);
+        }
+        if (rcode == Rcode.SERVFAIL) {
+            response.addRecord(question, Section.QUESTION);
+        }
+        header.setFlag(Flags.QR);
+        header.setRcode(rcode);
+        return response.toWire();
+    }
+
+    //Echoes the ID, opcode and RD flag of the query with no records
+    boolean formerrMessage(ByteBuffer in, ByteBuffer out) {
+        if (in.remaining() < HEADER_LENGTH)
+            return false;
+        int start = in.position();
+        int flags = in.getShort(start + 2) & (OPCODE_MASK | FLAG_RD);
+        out.putShort(in.getShort(start));
+        out.putShort((short) (flags | FLAG_QR | Rcode.FORMERR));
+        out.putShort((short) 0);
+        out.putShort((short) 0);
+        out.putShort((short) 0);
+        out.putShort((short) 0);
+        return true;
+    }
+
+    private byte[] errorMessage(Message query, int rcode) {
+        return buildErrorMessage(query.getHeader(), rcode, query.getQuestion());
+    }
+}
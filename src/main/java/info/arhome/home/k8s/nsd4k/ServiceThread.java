@@ -1,71 +1,90 @@
 package info.arhome.home.k8s.nsd4k;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.gson.reflect.TypeToken;
 
-import io.kubernetes.client.custom.V1Patch;
 import io.kubernetes.client.openapi.ApiClient;
-import io.kubernetes.client.openapi.Configuration;
 import io.kubernetes.client.openapi.apis.CoreV1Api;
-import io.kubernetes.client.openapi.models.V1ListMeta;
 import io.kubernetes.client.openapi.models.V1LoadBalancerIngress;
 import io.kubernetes.client.openapi.models.V1LoadBalancerStatus;
 import io.kubernetes.client.openapi.models.V1ObjectMeta;
 import io.kubernetes.client.openapi.models.V1Secret;
 import io.kubernetes.client.openapi.models.V1Service;
-import io.kubernetes.client.openapi.models.V1ServiceList;
 import io.kubernetes.client.openapi.models.V1ServiceSpec;
 import io.kubernetes.client.openapi.models.V1ServiceStatus;
-import io.kubernetes.client.util.Config;
-import io.kubernetes.client.util.PatchUtils;
 import io.kubernetes.client.util.Watch;
-import okhttp3.Call;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.nio.file.Files;
-import java.time.Duration;
-import java.time.Instant;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
-public class ServiceThread implements Runnable {
+public class ServiceThread implements Runnable, Informer.Handler<V1Service> {
     static final Logger log = LoggerFactory.getLogger(ServiceThread.class);
 
     private final DnsDB dnsDB;
-    private final CA ca;
-
-    private final ObjectMapper objectMapper;
+    private final DnsDBUpdater updates;
+    private final CertificateUpdater certificates;
+    private final CoreV1Api coreV1Api;
+    private final Informer<V1Service> services;
+    //Only the secrets certificates went to, by their label, are watched
+    private final Informer<V1Secret> secrets;
 
     /*
     private boolean clusterDnsChecked;
     private String clusterDnsDomain;
      */
-    private Instant certRotateTime;
-
-    public ServiceThread(ConfigDto config, DnsDB _dnsDB) throws IOException {
-        dnsDB = _dnsDB;
-        ca = new CA(config);
 
-        objectMapper = new ObjectMapper();
+    public ServiceThread(ConfigDto config, DnsDBUpdater _updates, ApiClient client) throws IOException {
+        updates = _updates;
+        dnsDB = updates.dnsDB;
+        certificates = new CertificateUpdater(config, new CA(config), this::isCurrent);
+        coreV1Api = new CoreV1Api(client);
+
+        services = new Informer<>("services", client,
+                (continueToken, limit) -> coreV1Api.listServiceForAllNamespaces(
+                        null, continueToken, null, null, limit,
+                        null, null, null, null, null),
+                resourceVersion -> coreV1Api.listServiceForAllNamespacesCall(
+                        true, null, null, null,
+                        null, null, resourceVersion, null,
+                        null, true, null),
+                new TypeToken<Watch.Response<V1Service>>() {
+                }.getType(),
+                this, service -> true, config);
+        secrets = new Informer<>("secrets", client,
+                (continueToken, limit) -> coreV1Api.listSecretForAllNamespaces(
+                        null, continueToken, null, CertificateUpdater.MANAGED_SELECTOR, limit,
+                        null, null, null, null, null),
+                resourceVersion -> coreV1Api.listSecretForAllNamespacesCall(
+                        true, null, null, CertificateUpdater.MANAGED_SELECTOR,
+                        null, null, resourceVersion, null,
+                        null, true, null),
+                new TypeToken<Watch.Response<V1Secret>>() {
+                }.getType(),
+                certificates, secret -> true, config);
+        certificates.setSecrets(secrets);
 
         /*
         clusterDnsChecked = false;
         clusterDnsDomain = null;
 
          */
-        certRotateTime = null;
     }
 
     private static final String SERVICE_ENTRY_KIND = "Service";
 
     private static class SvcEntry extends DnsDB.Entry {
         public String secret;
+        //Certificate profile overrides, or null for the defaults
+        public String keyAlgorithm;
+        public String validityDays;
         public String dnsName;
         public List<String> externalIPs;
 
@@ -107,185 +126,123 @@ public class ServiceThread implements Runnable {
             }
             aRecords.put(dnsName, externalIPs);
 
-            if (labels != null)
+            if (labels != null) {
                 secret = labels.get(K8sUtil.getLabelPrefix() + "/secret");
+                keyAlgorithm = labels.get(K8sUtil.getLabelPrefix() + "/key");
+                validityDays = labels.get(K8sUtil.getLabelPrefix() + "/validity");
+            }
         }
     }
 
+    //Certificates are issued in the background; this only queues the job
     void updateCertificate(SvcEntry entry, CoreV1Api coreV1Api) {
         if (entry.secret != null) {
-            log.info("AUDIT: Adding TLS certificates for service {} in secret {}",
-                    entry, entry.secret);
-            try {
-                CA.Cert cert = ca.getCert(entry.dnsName);
-
-                //Create patch
-                Map<String, byte[]> secretDataModel = new HashMap<>();
-                secretDataModel.put(CA.CERT_FILE, Files.readAllBytes(cert.getCertificatePem()));
-                secretDataModel.put(CA.KEY_FILE, Files.readAllBytes(cert.getPrivateKeyPem()));
-                secretDataModel.put(CA.CA_CERT_FILE, Files.readAllBytes(ca.getCacertPem()));
-                V1Patch secretPatch = new V1Patch("[{\"op\":\"replace\",\"path\":\"/data\",\"value\":"
-                        + objectMapper.writeValueAsString(secretDataModel) + "}]");
-
-                //Apply patch
-                PatchUtils.patch(V1Secret.class,
-                        () -> coreV1Api.patchNamespacedSecretCall
-                                (entry.secret, entry.namespace, secretPatch,
-                                        null, null, null, null, null),
-                        V1Patch.PATCH_FORMAT_JSON_PATCH, coreV1Api.getApiClient());
-            } catch (Exception e) {
-                log.warn("Unable to update secret with certificate", K8sUtil.processException(e));
-            }
+            certificates.submit(new CertificateUpdater.Job(entry.namespace, entry.name, entry.secret, entry.dnsName,
+                    entry.keyAlgorithm, entry.validityDays, entry.toString(), coreV1Api));
         }
     }
 
-    void processService(V1Service service, CoreV1Api coreV1Api, K8sUtil.WatchEvent eventType) {
+    //Returns the entry if it is to be added or replaced, or null if it is to be removed
+    SvcEntry updateDns(V1Service service, K8sUtil.WatchEvent eventType) {
         SvcEntry entry = new SvcEntry(service);
 
         final boolean remove = (eventType == K8sUtil.WatchEvent.DELETED);
-        synchronized (dnsDB) {
-            //Update dnsDB
-            if (remove) {
-                dnsDB.remove(entry);
-            } else {
-                dnsDB.addreplace(entry);
-            }
+        if (remove) {
+            updates.remove(entry);
+        } else {
+            updates.addreplace(entry);
         }
+        return remove ? null : entry;
+    }
 
-        if (!remove) {
+    void processService(V1Service service, CoreV1Api coreV1Api, K8sUtil.WatchEvent eventType) {
+        SvcEntry entry = updateDns(service, eventType);
+        if (entry != null) {
             updateCertificate(entry, coreV1Api);
         }
     }
 
-    void rotateCerts(CoreV1Api coreV1Api) {
-        if (certRotateTime != null) {
-            if (Instant.now().isAfter(certRotateTime)) {
-                log.info("AUDIT: Start rotating all certificates");
-                List<DnsDB.Entry> entryList;
-                synchronized (dnsDB) {
-                    entryList = dnsDB.list(SERVICE_ENTRY_KIND);
-                }
-                for (DnsDB.Entry _entry : entryList) {
-                    SvcEntry entry = (SvcEntry) _entry;
-                    updateCertificate(entry, coreV1Api);
-                }
-                log.info("AUDIT: End rotating all certificates");
-                certRotateTime = null;
-            }
+    //Whether the service a scheduled renewal is for still wants that certificate
+    boolean isCurrent(CertificateUpdater.Job job) {
+        DnsDB.Entry probe = new DnsDB.Entry();
+        probe.kind = SERVICE_ENTRY_KIND;
+        probe.namespace = job.namespace;
+        probe.name = job.service;
+        synchronized (dnsDB) {
+            return dnsDB.get(probe) instanceof SvcEntry entry
+                    && job.secret.equals(entry.secret)
+                    && job.dnsName.equals(entry.dnsName)
+                    && Objects.equals(job.keyAlgorithm, entry.keyAlgorithm)
+                    && Objects.equals(job.validityDays, entry.validityDays);
         }
-        if (certRotateTime == null)
-            certRotateTime = Instant.now().plus(Duration.ofDays(1));
     }
 
-    void loop() {
-        try {
-            //Connect to Kubernetes API
-            ApiClient client;
-            try {
-                client = Config.defaultClient();
-            } catch (IOException e) {
-                throw new PrettyException("Unable to connect to apiserver", K8sUtil.processException(e));
-            }
-            Configuration.setDefaultApiClient(client);
-
-            CoreV1Api coreV1Api = new CoreV1Api();
-
-            /*
-            //Check the cluster domain from coredns config
-            if (! clusterDnsChecked) {
-                try {
-                    V1ConfigMap corednsConfig = coreV1Api.readNamespacedConfigMap
-                            ("coredns", "kube-system", null);
-                    if (corednsConfig != null) {
-                        Map<String, String> data = corednsConfig.getData();
-                        if (data != null) {
-                            String corefile = data.get("Corefile");
-                            if (corefile != null) {
-                                Pattern p = Pattern.compile("kubernetes[ \\t]*([a-z0-9.-]*) ");
-                                Matcher m = p.matcher(corefile);
-                                if (m.find()) {
-                                    clusterDnsDomain = m.group(1);
-                                    log.info("Cluster DNS domain: {}", clusterDnsDomain);
-                                }
-                            }
-                        }
-                    }
-                } catch (ApiException e) {
-                    if (e.getCode() >= 400 && e.getCode() < 500) {
-                        log.warn("Unable to fetch coredns configuration ({})", e.getCode(),
-                                K8sUtil.processException(e));
-                    } else {
-                        throw new PrettyException("Unable to check coredns config", K8sUtil.processException(e));
-                    }
-                }
-
-                clusterDnsChecked = true;
-            }
-
-             */
-
-            //List
-            log.info("List");
-            V1ServiceList serviceList = coreV1Api.listServiceForAllNamespaces(
-                    null, null, null, null, null,
-                    null, null, null, null, null);
-            V1ListMeta serviceListMeta = serviceList.getMetadata();
-            assert(serviceListMeta != null);
-
-            K8sUtil.WatchChecker<V1Service> checker = new K8sUtil.WatchChecker<>();
-            checker.resourceVersion = serviceListMeta.getResourceVersion();
-            synchronized (dnsDB) {
-                dnsDB.clear(SERVICE_ENTRY_KIND);
-                for (V1Service service : serviceList.getItems()) {
-                    processService(service, coreV1Api, null);
-                }
-            }
+    //Services of the list so far, the rest are removed when it completes
+    private final Set<DnsDB.Entry> listed = new HashSet<>();
 
-            //Watch
-            while (true) {
-                log.info("Watch begin at {}", checker.resourceVersion);
-                Call call;
-                try {
-                    call = coreV1Api.listServiceForAllNamespacesCall(
-                            true, null, null, null,
-                            null, null, checker.resourceVersion, null,
-                            null, true, null);
-                } catch (Exception e) {
-                    throw new PrettyException("Failed to create watch call on services", K8sUtil.processException(e));
-                }
-
-                try (Watch<V1Service> v1ServiceWatch = Watch.createWatch(client, call,
-                        new TypeToken<Watch.Response<V1Service>>() {
-                        }.getType())) {
+    @Override
+    public void beginList() {
+        listed.clear();
+    }
 
-                    for (Watch.Response<V1Service> serviceResponse : v1ServiceWatch) {
-                        if (checker.check(serviceResponse))
-                            continue;
+    @Override
+    public void onListPage(Collection<V1Service> services) {
+        for (V1Service service : services) {
+            SvcEntry entry = updateDns(service, null);
+            listed.add(entry);
+            updateCertificate(entry, coreV1Api);
+        }
+    }
 
-                        processService(checker.object, coreV1Api, checker.event);
-                    }
-                } catch (Exception e) {
-                    throw new PrettyException("Failed to execute watch on services", K8sUtil.processException(e));
-                }
-                log.info("Watch end");
+    @Override
+    public void endList() {
+        updates.retain(SERVICE_ENTRY_KIND, listed);
+        listed.clear();
+    }
 
-                rotateCerts(coreV1Api);
-            }
-        } catch (Exception e) {
-            log.error("Loop iteration failed", e);
-        }
+    @Override
+    public void onEvent(K8sUtil.WatchEvent event, V1Service service) {
+        processService(service, coreV1Api, event);
     }
 
     @Override
     public void run() {
-        //Kubernetes watch loop
-        while (true) {
-            loop();
+        /*
+        //Check the cluster domain from coredns config
+        if (! clusterDnsChecked) {
             try {
-                Thread.sleep(15000);
-            } catch (Exception e) {
-                throw new PrettyException("Thread.sleep failed", e);
+                V1ConfigMap corednsConfig = coreV1Api.readNamespacedConfigMap
+                        ("coredns", "kube-system", null);
+                if (corednsConfig != null) {
+                    Map<String, String> data = corednsConfig.getData();
+                    if (data != null) {
+                        String corefile = data.get("Corefile");
+                        if (corefile != null) {
+                            Pattern p = Pattern.compile("kubernetes[ \\t]*([a-z0-9.-]*) ");
+                            Matcher m = p.matcher(corefile);
+                            if (m.find()) {
+                                clusterDnsDomain = m.group(1);
+                                log.info("Cluster DNS domain: {}", clusterDnsDomain);
+                            }
+                        }
+                    }
+                }
+            } catch (ApiException e) {
+                if (e.getCode() >= 400 && e.getCode() < 500) {
+                    log.warn("Unable to fetch coredns configuration ({})", e.getCode(),
+                            K8sUtil.processException(e));
+                } else {
+                    throw new PrettyException("Unable to check coredns config", K8sUtil.processException(e));
+                }
             }
+
+            clusterDnsChecked = true;
         }
+
+         */
+
+        Thread t = new Thread(secrets, "secrets");
+        t.start();
+        services.run();
     }
 }
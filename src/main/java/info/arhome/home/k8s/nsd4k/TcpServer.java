@@ -0,0 +1,193 @@
+package info.arhome.home.k8s.nsd4k;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+//Serves DNS over TCP on one address from a single selector thread. Connections
+//are kept open and may carry any number of pipelined queries (RFC 7766).
+public class TcpServer implements Runnable {
+    private static final Logger log = LoggerFactory.getLogger(TcpServer.class);
+
+    private static final int INITIAL_BUFFER_SIZE = 2 + 512;
+
+    private static class Connection {
+        final SocketChannel channel;
+        ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        long lastActive;
+
+        Connection(SocketChannel _channel, long now) {
+            channel = _channel;
+            lastActive = now;
+        }
+    }
+
+    private final Resolver resolver;
+    private final String name;
+    private final int maxConnections;
+    private final long idleTimeout;
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private int connections;
+    private final ByteBuffer reply = ByteBuffer.allocate(2 + 65535);
+
+    private final Metrics.Counter queries;
+    private final Metrics.Counter rejected;
+
+    public TcpServer(Resolver _resolver, InetAddress addr, int port, ConfigDto config) throws IOException {
+        resolver = _resolver;
+        name = DnsServer.addrport(addr, port);
+        maxConnections = config.tcpMaxConnections;
+        idleTimeout = config.tcpIdleTimeout * 1000L;
+
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(addr, port), 128);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        connections = 0;
+
+        queries = DnsServer.queryCounter(addr, port, "tcp");
+        rejected = Metrics.counter("nsd4k_dns_tcp_rejected_total",
+                "TCP connections closed because tcpMaxConnections was reached", "listener", name);
+    }
+
+    private void accept(long now) throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null)
+            return;
+        if (connections >= maxConnections) {
+            log.debug("serveTCP({}): too many connections", name);
+            rejected.inc();
+            channel.close();
+            return;
+        }
+        channel.configureBlocking(false);
+        //Replies are written whole, so Nagle would only hold back the ones
+        //after the first until the client's delayed ACK
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        channel.register(selector, SelectionKey.OP_READ, new Connection(channel, now));
+        connections++;
+    }
+
+    private void close(SelectionKey key) {
+        Connection conn = (Connection) key.attachment();
+        key.cancel();
+        try {
+            conn.channel.close();
+        } catch (IOException e) {
+            log.debug("serveTCP({}): close: exception", name, e);
+        }
+        connections--;
+    }
+
+    private void read(SelectionKey key, Connection conn, long now) throws IOException {
+        if (conn.channel.read(conn.in) < 0) {
+            close(key);
+            return;
+        }
+        conn.lastActive = now;
+
+        //Answer every complete message in the buffer
+        ByteBuffer in = conn.in;
+        in.flip();
+        while (in.remaining() >= 2) {
+            int length = in.getShort(in.position()) & 0xffff;
+            if (in.remaining() < 2 + length)
+                break;
+            ByteBuffer query = in.slice(in.position() + 2, length);
+            in.position(in.position() + 2 + length);
+            queries.inc();
+
+            reply.clear();
+            reply.position(2);
+            if (resolver.generateReply(query, reply, true)) {
+                reply.putShort(0, (short) (reply.position() - 2));
+                reply.flip();
+                conn.out.add(ByteBuffer.allocate(reply.remaining()).put(reply).flip());
+            }
+        }
+        in.compact();
+
+        //Make room for a partially received message
+        if (in.position() >= 2) {
+            int needed = 2 + (in.getShort(0) & 0xffff);
+            if (in.capacity() < needed) {
+                in.flip();
+                conn.in = ByteBuffer.allocate(needed).put(in);
+            }
+        }
+
+        write(key, conn);
+    }
+
+    //Stops reading while responses are pending, so that a client which does not
+    //read cannot make us buffer without limit
+    private void write(SelectionKey key, Connection conn) throws IOException {
+        while (! conn.out.isEmpty()) {
+            ByteBuffer out = conn.out.peek();
+            conn.channel.write(out);
+            if (out.hasRemaining())
+                break;
+            conn.out.poll();
+        }
+        key.interestOps(conn.out.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_WRITE);
+    }
+
+    private void closeIdle(long now) {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection conn && now - conn.lastActive > idleTimeout)
+                close(key);
+        }
+    }
+
+    @Override
+    public void run() {
+        long lastSweep = System.currentTimeMillis();
+        while (true) {
+            try {
+                selector.select(1000);
+                long now = System.currentTimeMillis();
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (! key.isValid())
+                        continue;
+                    if (key.isAcceptable()) {
+                        accept(now);
+                        continue;
+                    }
+                    Connection conn = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable())
+                            read(key, conn, now);
+                        else if (key.isWritable())
+                            write(key, conn);
+                    } catch (IOException e) {
+                        log.debug("serveTCP({}): connection: exception", name, e);
+                        close(key);
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                if (now - lastSweep >= 1000) {
+                    closeIdle(now);
+                    lastSweep = now;
+                }
+            } catch (Exception e) {
+                log.info("serveTCP({}): exception", name, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package info.arhome.home.k8s.nsd4k;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class AddressIndexTest {
+    Map<String, List<String>> makeEntry(String key, String... list) {
+        return Collections.singletonMap(key, Arrays.asList(list));
+    }
+
+    void checkIndex(AddressIndex index, String key, String... list) {
+        assertEquals(Arrays.asList(list), index.get(key).toList());
+    }
+
+    @Test
+    public void testAdd() {
+        AddressIndex index = new AddressIndex();
+
+        index.change(makeEntry("a", "10.0.0.1", "fc00::1", "10.0.0.2"), 1);
+        index.change(makeEntry("a", "10.0.0.2", "10.0.0.3", "fc00:0::2"), 1);
+
+        checkIndex(index, "a", "10.0.0.1", "10.0.0.2", "10.0.0.3", "fc00:0:0:0:0:0:0:1", "fc00:0:0:0:0:0:0:2");
+        assertEquals(3, index.get("a").v4Size());
+        assertEquals(2, index.get("a").v6Size());
+    }
+
+    @Test
+    public void testSub() {
+        AddressIndex index = new AddressIndex();
+
+        index.change(makeEntry("a", "10.0.0.1", "10.0.0.2", "fc00::1"), 1);
+        index.change(makeEntry("a", "10.0.0.2", "fc00::1", "fc00::2"), 1);
+        index.change(makeEntry("a", "10.0.0.1", "10.0.0.2", "fc00::1"), -1);
+
+        checkIndex(index, "a", "10.0.0.2", "fc00:0:0:0:0:0:0:1", "fc00:0:0:0:0:0:0:2");
+    }
+
+    @Test
+    public void testInvalid() {
+        AddressIndex index = new AddressIndex();
+
+        index.change(makeEntry("a", "10.0.0.1", "example.com"), 1);
+        checkIndex(index, "a", "10.0.0.1");
+
+        index.change(makeEntry("a", "10.0.0.1", "example.com"), -1);
+        assert(index.get("a") == null);
+    }
+
+    @Test
+    public void testEmpty() {
+        AddressIndex index = new AddressIndex();
+
+        index.change(makeEntry("a", "10.0.0.1", "fc00::1"), 1);
+        index.change(makeEntry("a", "10.0.0.1", "fc00::1"), -1);
+        assert(index.get("a") == null);
+
+        index.change(makeEntry("a"), 1);
+        assert(index.get("a") == null);
+    }
+
+    @Test
+    public void testReplace() {
+        AddressIndex index = new AddressIndex();
+
+        Map<String, List<String>> before = new HashMap<>();
+        before.put("a", Arrays.asList("10.0.0.1", "10.0.0.2"));
+        before.put("b", Arrays.asList("10.0.0.3"));
+        before.put("c", Arrays.asList("10.0.0.4"));
+        assertEquals(Set.of("a", "b", "c"), index.change(before, 1));
+        AddressIndex.Addresses a = index.get("a");
+
+        Map<String, List<String>> after = new HashMap<>();
+        after.put("a", Arrays.asList("10.0.0.2", "10.0.0.5"));
+        after.put("b", Arrays.asList("10.0.0.3"));
+        after.put("d", Arrays.asList("fc00::1"));
+        assertEquals(Set.of("a", "c", "d"), index.replace(before, after));
+
+        //Changed in place, keeping the order of what stayed
+        assert(index.get("a") == a);
+        checkIndex(index, "a", "10.0.0.2", "10.0.0.5");
+        checkIndex(index, "b", "10.0.0.3");
+        assert(index.get("c") == null);
+        checkIndex(index, "d", "fc00:0:0:0:0:0:0:1");
+    }
+
+    @Test
+    public void testChangedNames() {
+        AddressIndex index = new AddressIndex();
+
+        index.change(makeEntry("a", "10.0.0.1"), 1);
+        //Only counted again: the name still has the same addresses
+        assertEquals(Set.of(), index.change(makeEntry("a", "10.0.0.1"), 1));
+        assertEquals(Set.of(), index.change(makeEntry("a", "10.0.0.1"), -1));
+        assertEquals(Set.of("a"), index.change(makeEntry("a", "10.0.0.1"), -1));
+    }
+}
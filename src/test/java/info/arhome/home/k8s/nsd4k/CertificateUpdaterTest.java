@@ -0,0 +1,295 @@
+package info.arhome.home.k8s.nsd4k;
+
+import io.kubernetes.client.openapi.ApiException;
+import io.kubernetes.client.openapi.models.V1ObjectMeta;
+import io.kubernetes.client.openapi.models.V1Secret;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CertificateUpdaterTest {
+    //Records jobs instead of issuing certificates; the first job blocks until
+    //released. Jobs are renewed after 'renewAfter' if it is set.
+    static class RecordingUpdater extends CertificateUpdater {
+        final List<String> done = new ArrayList<>();
+        final List<String> forgotten = new CopyOnWriteArrayList<>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Duration renewAfter = null;
+
+        RecordingUpdater(ConfigDto config, Predicate<Job> current) {
+            super(config, null, current);
+        }
+
+        RecordingUpdater(ConfigDto config) {
+            this(config, job -> true);
+        }
+
+        @Override
+        Instant update(Job job) throws Exception {
+            started.countDown();
+            release.await();
+            synchronized (done) {
+                done.add(job.description);
+                done.notifyAll();
+            }
+            return renewAfter == null ? null : Instant.now().plus(renewAfter);
+        }
+
+        @Override
+        void forget(Job job) {
+            forgotten.add(job.dnsName);
+        }
+
+        void awaitDone(int count) throws InterruptedException {
+            synchronized (done) {
+                while (done.size() < count)
+                    done.wait();
+            }
+        }
+    }
+
+    CertificateUpdater.Job makeJob(String secret, String description) {
+        return new CertificateUpdater.Job("default", "svc", secret, secret + ".default", null, null, description, null);
+    }
+
+    ConfigDto makeConfig(int workers) {
+        ConfigDto config = new ConfigDto();
+        config.certWorkers = workers;
+        config.certQueueSize = 2;
+        config.certRotationsPerMinute = 60000;
+        return config;
+    }
+
+    @Test
+    public void testCoalesce() throws Exception {
+        RecordingUpdater updater = new RecordingUpdater(makeConfig(1));
+
+        updater.submit(makeJob("a", "a1"));
+        assertTrue(updater.started.await(10, TimeUnit.SECONDS));
+
+        //The worker is busy with a1: a2 is replaced by a3, b1 waits behind it
+        updater.submit(makeJob("a", "a2"));
+        updater.submit(makeJob("b", "b1"));
+        updater.submit(makeJob("a", "a3"));
+        assertEquals(2, updater.queueLength());
+
+        updater.release.countDown();
+        updater.awaitDone(3);
+        assertEquals(Arrays.asList("a1", "a3", "b1"), updater.done);
+    }
+
+    @Test
+    public void testSameSecretNotConcurrent() throws Exception {
+        RecordingUpdater updater = new RecordingUpdater(makeConfig(2));
+
+        updater.submit(makeJob("a", "a1"));
+        assertTrue(updater.started.await(10, TimeUnit.SECONDS));
+        updater.submit(makeJob("a", "a2"));
+
+        //The idle worker must leave a2 alone while a1 runs
+        Thread.sleep(100);
+        assertEquals(1, updater.queueLength());
+
+        updater.release.countDown();
+        updater.awaitDone(2);
+        assertEquals(Arrays.asList("a1", "a2"), updater.done);
+    }
+
+    @Test
+    public void testRotation() throws Exception {
+        RecordingUpdater updater = new RecordingUpdater(makeConfig(1));
+        updater.renewAfter = Duration.ofMillis(50);
+        updater.release.countDown();
+
+        updater.submit(makeJob("a", "a1"));
+        updater.awaitDone(3);
+        assertEquals(Arrays.asList("a1", "a1", "a1"), updater.done.subList(0, 3));
+    }
+
+    @Test
+    public void testRotationNotCurrent() throws Exception {
+        RecordingUpdater updater = new RecordingUpdater(makeConfig(1), job -> false);
+        updater.renewAfter = Duration.ofMillis(10);
+        updater.release.countDown();
+
+        updater.submit(makeJob("a", "a1"));
+        updater.awaitDone(1);
+        Thread.sleep(200);
+        assertEquals(List.of("a1"), updater.done);
+        assertEquals(0, updater.scheduledCount());
+        assertEquals(List.of("a.default"), updater.forgotten);
+    }
+
+    @Test
+    public void testDeletedSecret() throws Exception {
+        boolean[] exists = {false};
+        RecordingUpdater updater = new RecordingUpdater(makeConfig(1)) {
+            @Override
+            V1Secret readSecret(Job job) throws ApiException {
+                if (! exists[0])
+                    throw new ApiException(404, "Not Found");
+                return new V1Secret();
+            }
+        };
+        updater.release.countDown();
+        updater.submit(makeJob("a", "a1"));
+        updater.awaitDone(1);
+
+        //Deleted: left for its ADDED event
+        V1Secret secret = new V1Secret().metadata(new V1ObjectMeta().namespace("default").name("a"));
+        updater.onEvent(K8sUtil.WatchEvent.DELETED, secret);
+        Thread.sleep(100);
+        assertEquals(0, updater.queueLength());
+        synchronized (updater.done) {
+            assertEquals(List.of("a1"), updater.done);
+        }
+
+        //Only its label was taken away: checked again right away
+        exists[0] = true;
+        updater.onEvent(K8sUtil.WatchEvent.DELETED, secret);
+        updater.awaitDone(2);
+        assertEquals(Arrays.asList("a1", "a1"), updater.done);
+    }
+
+    @Test
+    public void testRetryDelay() {
+        assertEquals(Duration.ofMinutes(10), CertificateUpdater.retryDelay(1));
+        assertEquals(Duration.ofMinutes(20), CertificateUpdater.retryDelay(2));
+        assertEquals(Duration.ofMinutes(640), CertificateUpdater.retryDelay(7));
+        assertEquals(Duration.ofDays(1), CertificateUpdater.retryDelay(9));
+        assertEquals(Duration.ofDays(1), CertificateUpdater.retryDelay(1000));
+    }
+
+    //Issues real certificates, but keeps the secret in memory
+    static class FakeSecretUpdater extends CertificateUpdater {
+        Map<String, byte[]> secret = new HashMap<>();
+        boolean managed = false;
+        int reads = 0;
+        int patches = 0;
+        int labels = 0;
+
+        FakeSecretUpdater(ConfigDto config, CA ca) {
+            super(config, ca, job -> true);
+        }
+
+        @Override
+        V1Secret readSecret(Job job) {
+            reads++;
+            V1ObjectMeta metadata = new V1ObjectMeta().namespace(job.namespace).name(job.secret);
+            if (managed)
+                metadata.putLabelsItem(MANAGED_LABEL, "true");
+            return new V1Secret().metadata(metadata).data(secret);
+        }
+
+        @Override
+        void patchSecret(Job job, Map<String, byte[]> secretDataModel) {
+            patches++;
+            secret = secretDataModel;
+        }
+
+        @Override
+        void labelSecret(Job job) {
+            labels++;
+            managed = true;
+        }
+    }
+
+    @Test
+    public void testSkipUnchanged(@TempDir Path datadir) throws Exception {
+        ConfigDto config = makeConfig(1);
+        config.datadir = datadir.toString();
+        config.domains = new String[]{"home"};
+        config.keyPoolSize = 0;
+        CA ca = new CA(config);
+
+        FakeSecretUpdater updater = new FakeSecretUpdater(config, ca);
+        updater.update(makeJob("a", "a1"));
+        updater.update(makeJob("a", "a1"));
+        assertEquals(1, updater.reads);
+        assertEquals(1, updater.patches);
+        assertEquals(1, updater.labels);
+
+        //After a restart the secret is read, and left alone if it is up to date
+        FakeSecretUpdater restarted = new FakeSecretUpdater(config, ca);
+        restarted.secret = updater.secret;
+        restarted.managed = true;
+        restarted.update(makeJob("a", "a1"));
+        assertEquals(1, restarted.reads);
+        assertEquals(0, restarted.patches);
+        assertEquals(0, restarted.labels);
+
+        //Up to date but not labelled yet, as after an upgrade: only labelled
+        FakeSecretUpdater upgraded = new FakeSecretUpdater(config, ca);
+        upgraded.secret = updater.secret;
+        upgraded.update(makeJob("a", "a1"));
+        assertEquals(0, upgraded.patches);
+        assertEquals(1, upgraded.labels);
+    }
+
+    @Test
+    public void testSecretCache(@TempDir Path datadir) throws Exception {
+        ConfigDto config = makeConfig(1);
+        config.datadir = datadir.toString();
+        config.domains = new String[]{"home"};
+        config.keyPoolSize = 0;
+        CA ca = new CA(config);
+
+        FakeSecretUpdater updater = new FakeSecretUpdater(config, ca);
+        //Never run, only fed by hand
+        Informer<V1Secret> secrets = new Informer<>("test-secrets", null, null, null, null,
+                new Informer.Handler<>() {
+                    public void onListPage(Collection<V1Secret> objects) {
+                    }
+
+                    public void onEvent(K8sUtil.WatchEvent event, V1Secret object) {
+                    }
+                }, secret -> true, config);
+        updater.setSecrets(secrets);
+
+        updater.update(makeJob("a", "a1"));
+        Map<String, byte[]> issued = updater.secret;
+        V1Secret secret = new V1Secret().metadata(new V1ObjectMeta().namespace("default").name("a")
+                .putLabelsItem(CertificateUpdater.MANAGED_LABEL, "true")).data(issued);
+        secrets.apply(K8sUtil.WatchEvent.ADDED, secret);
+        //Up to date in the cache: neither read nor patched again
+        updater.update(makeJob("a", "a1"));
+        assertEquals(1, updater.reads);
+        assertEquals(1, updater.patches);
+
+        //Changed by someone else, although the same certificate was applied
+        Map<String, byte[]> tampered = new HashMap<>(issued);
+        tampered.put(CA.CERT_FILE, new byte[]{1});
+        secrets.apply(K8sUtil.WatchEvent.MODIFIED,
+                new V1Secret().metadata(secret.getMetadata()).data(tampered));
+        updater.update(makeJob("a", "a1"));
+        assertEquals(1, updater.reads);
+        assertEquals(2, updater.patches);
+        assertEquals(1, updater.labels);
+
+        //Its label was taken away: it is read and labelled again
+        secrets.apply(K8sUtil.WatchEvent.DELETED, secret);
+        updater.onEvent(K8sUtil.WatchEvent.DELETED, secret);
+        updater.managed = false;
+        updater.update(makeJob("a", "a1"));
+        assertEquals(2, updater.reads);
+        assertEquals(2, updater.labels);
+    }
+}
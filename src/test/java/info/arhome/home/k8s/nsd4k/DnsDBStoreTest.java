@@ -0,0 +1,84 @@
+package info.arhome.home.k8s.nsd4k;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DnsDBStoreTest {
+    ConfigDto makeConfig(Path datadir) {
+        ConfigDto config = new ConfigDto();
+        config.datadir = datadir.toString();
+        return config;
+    }
+
+    DnsDB makeDB() {
+        DnsDB db = new DnsDB();
+        DnsDB.Entry entry = new DnsDB.Entry();
+        entry.kind = "ConfigMap";
+        entry.namespace = "dns";
+        entry.name = "main-dns";
+        entry.aRecords.put("ns.dns", Arrays.asList("172.16.0.4", "fc00::4"));
+        entry.aRecords.put("k8s.dns", List.of("172.16.0.4"));
+        db.addreplace(entry);
+        return db;
+    }
+
+    @Test
+    public void testWriteLoad(@TempDir Path datadir) throws Exception {
+        DnsDB db = makeDB();
+        DnsDBStore store = new DnsDBStore(makeConfig(datadir), db);
+        assertTrue(store.write());
+        //Nothing changed since
+        assertFalse(store.write());
+
+        DnsDB loaded = new DnsDB();
+        DnsDBStore loadedStore = new DnsDBStore(makeConfig(datadir), loaded);
+        assertEquals(1, loadedStore.load());
+        DnsDB.Entry entry = loaded.list("ConfigMap").get(0);
+        assertEquals("main-dns", entry.name);
+        assertEquals(db.list("ConfigMap").get(0).aRecords, entry.aRecords);
+        assertEquals(Arrays.asList("172.16.0.4", "fc00:0:0:0:0:0:0:4"), loaded.aRecords.get("ns.dns").toList());
+        //What was just loaded need not be written again
+        assertFalse(loadedStore.write());
+    }
+
+    @Test
+    public void testCheckpoints(@TempDir Path datadir) throws Exception {
+        DnsDB db = makeDB();
+        DnsDBStore store = new DnsDBStore(makeConfig(datadir), db);
+        store.write();
+        //A new checkpoint alone is reason to write
+        db.setCheckpoint("configmaps", "1234");
+        assertTrue(store.write());
+
+        DnsDB loaded = new DnsDB();
+        new DnsDBStore(makeConfig(datadir), loaded).load();
+        assertEquals("1234", loaded.getCheckpoint("configmaps"));
+    }
+
+    @Test
+    public void testCorrupt(@TempDir Path datadir) throws Exception {
+        new DnsDBStore(makeConfig(datadir), makeDB()).write();
+        Path file = datadir.resolve(DnsDBStore.FILE);
+        byte[] data = Files.readAllBytes(file);
+        data[data.length - 1] ^= 1;
+        Files.write(file, data);
+
+        DnsDB loaded = new DnsDB();
+        assertEquals(0, new DnsDBStore(makeConfig(datadir), loaded).load());
+        assertEquals(0, loaded.list().size());
+    }
+
+    @Test
+    public void testMissing(@TempDir Path datadir) {
+        assertEquals(0, new DnsDBStore(makeConfig(datadir), new DnsDB()).load());
+    }
+}
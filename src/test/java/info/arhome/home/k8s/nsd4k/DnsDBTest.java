@@ -5,8 +5,10 @@ import org.junit.jupiter.api.Test;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 
 public class DnsDBTest {
     DnsDB db;
@@ -20,11 +22,15 @@ public class DnsDBTest {
     }
 
     void check(String name, String... values) {
-        List<String> result = db.aRecords.get(name);
+        List<String> result = db.aRecords.get(name).toList();
         Collections.sort(result);
         assertEquals(result, Arrays.asList(values));
     }
 
+    Answer answer(DnsDB.Snapshot snapshot, String name) {
+        return snapshot.getAnswer(NameKey.fromString(name));
+    }
+
     void initDB() {
         db = new DnsDB();
 
@@ -62,4 +68,187 @@ public class DnsDBTest {
 
         check("svc1", "172.16.1.2", "172.16.1.3");
     }
+
+    @Test
+    void testCase() {
+        initDB();
+
+        DnsDB.Entry entry = makeEntry("svc2");
+        entry.aRecords.put("SVC1", Arrays.asList("172.16.1.3"));
+        db.addreplace(entry);
+        check("svc1", "172.16.1.1", "172.16.1.2", "172.16.1.3");
+        assertEquals(3, answer(db.getSnapshot(), "Svc1").aCount);
+
+        db.remove(entry);
+        check("svc1", "172.16.1.1", "172.16.1.2");
+    }
+
+    @Test
+    void testSnapshot() {
+        initDB();
+        DnsDB.Snapshot before = db.getSnapshot();
+
+        DnsDB.Entry entry = makeEntry("svc2");
+        entry.aRecords.put("svc2", Arrays.asList("172.16.1.3"));
+        db.addreplace(entry);
+
+        DnsDB.Snapshot after = db.getSnapshot();
+        assertEquals(before.version + 1, after.version);
+        assert(answer(before, "svc2") == null);
+        assertEquals(1, answer(after, "svc2").aCount);
+        assert(answer(after, "svc1") == answer(before, "svc1"));
+    }
+
+    @Test
+    void testBatch() {
+        initDB();
+        DnsDB.Snapshot before = db.getSnapshot();
+
+        db.beginBatch();
+        db.remove(makeEntry("svc1"));
+        DnsDB.Entry entry = makeEntry("svc2");
+        entry.aRecords.put("svc2", Arrays.asList("172.16.1.3"));
+        db.addreplace(entry);
+        assert(db.getSnapshot() == before);
+        db.endBatch();
+
+        DnsDB.Snapshot after = db.getSnapshot();
+        assertEquals(before.version + 1, after.version);
+        assert(answer(after, "svc1") == null);
+        assertEquals(1, answer(after, "svc2").aCount);
+    }
+
+    @Test
+    void testReplaceUnchanged() {
+        initDB();
+        DnsDB.Snapshot before = db.getSnapshot();
+
+        DnsDB.Entry entry = makeEntry("svc1");
+        entry.aRecords.put("svc1", Arrays.asList("172.16.1.1", "172.16.1.2"));
+        assertFalse(db.addreplace(entry));
+        assert(db.getSnapshot() == before);
+        //The new entry is kept all the same
+        assert(db.get(entry) == entry);
+        assert(db.list("Service").get(0) == entry);
+    }
+
+    @Test
+    void testReplaceDelta() {
+        initDB();
+        DnsDB.Entry entry = makeEntry("cm");
+        entry.aRecords.put("x", Arrays.asList("172.16.2.1"));
+        entry.aRecords.put("y", Arrays.asList("172.16.2.2"));
+        db.addreplace(entry);
+        DnsDB.Snapshot before = db.getSnapshot();
+
+        entry = makeEntry("cm");
+        entry.aRecords.put("x", Arrays.asList("172.16.2.1"));
+        entry.aRecords.put("y", Arrays.asList("172.16.2.3"));
+        db.addreplace(entry);
+
+        //Only the changed name gets a new answer
+        DnsDB.Snapshot after = db.getSnapshot();
+        assertEquals(before.version + 1, after.version);
+        assert(answer(after, "x") == answer(before, "x"));
+        check("y", "172.16.2.3");
+    }
+
+    @Test
+    void testUpdater() {
+        initDB();
+        DnsDB.Snapshot before = db.getSnapshot();
+        ConfigDto config = new ConfigDto();
+        DnsDBUpdater updates = new DnsDBUpdater(config, db);
+
+        DnsDB.Entry entry = makeEntry("svc2");
+        entry.aRecords.put("svc2", Arrays.asList("172.16.1.2"));
+        updates.addreplace(entry);
+        entry = makeEntry("svc2");
+        entry.aRecords.put("svc2", Arrays.asList("172.16.1.3"));
+        updates.addreplace(entry);
+        updates.remove(makeEntry("svc1"));
+        updates.checkpoint("services", "17");
+        assertEquals(2, updates.pendingCount());
+        assert(db.getCheckpoint("services") == null);
+        updates.flush();
+        assertEquals("17", db.getCheckpoint("services"));
+
+        DnsDB.Snapshot after = db.getSnapshot();
+        assertEquals(before.version + 1, after.version);
+        assert(answer(after, "svc1") == null);
+        check("svc2", "172.16.1.3");
+    }
+
+    @Test
+    void testUpdaterRelist() {
+        initDB();
+        DnsDBUpdater updates = new DnsDBUpdater(new ConfigDto(), db);
+
+        //svc2 is added, then a relist without it ends before it was applied
+        DnsDB.Entry gone = makeEntry("svc2");
+        gone.aRecords.put("svc2", Arrays.asList("172.16.1.3"));
+        updates.addreplace(gone);
+        DnsDB.Entry kept = makeEntry("svc1");
+        kept.aRecords.put("svc1", Arrays.asList("172.16.1.1", "172.16.1.2"));
+        updates.retain("Service", Set.of(kept));
+        //Queued after the relist, so it stays
+        DnsDB.Entry added = makeEntry("svc3");
+        added.aRecords.put("svc3", Arrays.asList("172.16.1.4"));
+        updates.addreplace(added);
+        assertEquals(3, updates.pendingCount());
+        assertEquals(1, db.list("Service").size());
+        updates.flush();
+
+        assertEquals(0, updates.pendingCount());
+        assert(db.aRecords.get("svc2") == null);
+        check("svc1", "172.16.1.1", "172.16.1.2");
+        check("svc3", "172.16.1.4");
+        assertEquals(2, db.list("Service").size());
+    }
+
+    @Test
+    void testClear() {
+        initDB();
+        for (int i = 2; i < 10; i++) {
+            DnsDB.Entry entry = makeEntry("svc" + i);
+            entry.aRecords.put("svc" + i, Arrays.asList("172.16.1." + i));
+            db.addreplace(entry);
+        }
+        DnsDB.Entry other = makeEntry("cm");
+        other.kind = "ConfigMap";
+        other.aRecords.put("static", Arrays.asList("172.16.3.1"));
+        db.addreplace(other);
+
+        db.clear("Service");
+        assertEquals(0, db.list("Service").size());
+        assertEquals(List.of(other), db.list("ConfigMap"));
+        assert(db.aRecords.get("svc5") == null);
+        check("static", "172.16.3.1");
+    }
+
+    @Test
+    void testReplaceAll() {
+        initDB();
+        DnsDB.Entry entry = makeEntry("svc2");
+        entry.aRecords.put("svc2", Arrays.asList("172.16.1.3"));
+        db.addreplace(entry);
+        DnsDB.Snapshot before = db.getSnapshot();
+
+        //svc1 stays as it was, svc2 goes and svc3 comes
+        DnsDB.Entry same = makeEntry("svc1");
+        same.aRecords.put("svc1", Arrays.asList("172.16.1.1", "172.16.1.2"));
+        DnsDB.Entry added = makeEntry("svc3");
+        added.aRecords.put("svc3", Arrays.asList("172.16.1.4"));
+        assertEquals(2, db.replaceAll("Service", Arrays.asList(same, added)));
+
+        DnsDB.Snapshot after = db.getSnapshot();
+        assertEquals(before.version + 1, after.version);
+        assert(answer(after, "svc1") == answer(before, "svc1"));
+        assert(answer(after, "svc2") == null);
+        check("svc3", "172.16.1.4");
+        assertEquals(2, db.list("Service").size());
+        assertEquals(List.of(added), db.list("Service", "default").stream()
+                .filter(e -> e.name.equals("svc3")).toList());
+        assertEquals(0, db.list("Service", "other").size());
+    }
 }
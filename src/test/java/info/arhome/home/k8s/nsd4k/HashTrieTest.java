@@ -0,0 +1,79 @@
+package info.arhome.home.k8s.nsd4k;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class HashTrieTest {
+    //Keys with a hash of our choosing, to make collisions
+    record Key(int hash, int id) {
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    static void check(Map<Key, Integer> expected, HashTrie<Key, Integer> trie, int keys, int hashes) {
+        assertEquals(expected.size(), trie.size());
+        for (int i = 0; i < keys; i++) {
+            Key key = new Key(i % hashes, i);
+            assertEquals(expected.get(key), trie.get(key), key.toString());
+        }
+    }
+
+    @Test
+    public void testAgainstHashMap() {
+        //Few hashes for many keys, and many hashes for many keys
+        for (int hashes : new int[]{7, 100000}) {
+            Random random = new Random(hashes);
+            Map<Key, Integer> expected = new HashMap<>();
+            HashTrie<Key, Integer> trie = HashTrie.empty();
+            for (int i = 0; i < 20000; i++) {
+                int id = random.nextInt(2000);
+                Key key = new Key(id % hashes, id);
+                Integer value = random.nextInt(4) == 0 ? null : random.nextInt(100);
+                if (value == null)
+                    expected.remove(key);
+                else
+                    expected.put(key, value);
+                trie = trie.with(key, value);
+            }
+            check(expected, trie, 2000, hashes);
+
+            for (Key key : expected.keySet().toArray(new Key[0]))
+                trie = trie.with(key, null);
+            assertEquals(0, trie.size());
+            assertSame(HashTrie.empty(), trie);
+        }
+    }
+
+    @Test
+    public void testShared() {
+        HashTrie<Key, Integer> before = HashTrie.empty();
+        for (int i = 0; i < 1000; i++)
+            before = before.with(new Key(i, i), i);
+
+        //Changes leave the map they were made from as it was
+        HashTrie<Key, Integer> after = before.with(new Key(1, 1), -1).with(new Key(2, 2), null)
+                .with(new Key(1000, 1000), 1000);
+        assertEquals(1, before.get(new Key(1, 1)));
+        assertEquals(2, before.get(new Key(2, 2)));
+        assertNull(before.get(new Key(1000, 1000)));
+        assertEquals(1000, before.size());
+        assertEquals(-1, after.get(new Key(1, 1)));
+        assertNull(after.get(new Key(2, 2)));
+        assertEquals(1000, after.get(new Key(1000, 1000)));
+        assertEquals(1000, after.size());
+
+        //Nothing to change, nothing copied
+        assertSame(after, after.with(new Key(2, 2), null));
+        Integer value = after.get(new Key(3, 3));
+        assertSame(after, after.with(new Key(3, 3), value));
+    }
+}
@@ -0,0 +1,133 @@
+package info.arhome.home.k8s.nsd4k;
+
+import io.kubernetes.client.openapi.ApiException;
+import io.kubernetes.client.openapi.models.V1ConfigMap;
+import io.kubernetes.client.openapi.models.V1ConfigMapList;
+import io.kubernetes.client.openapi.models.V1ListMeta;
+import io.kubernetes.client.openapi.models.V1ObjectMeta;
+import io.kubernetes.client.openapi.models.V1Status;
+import io.kubernetes.client.util.Watch;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class InformerTest {
+    static class RecordingHandler implements Informer.Handler<V1ConfigMap> {
+        final List<String> calls = new ArrayList<>();
+
+        @Override
+        public void beginList() {
+            calls.add("begin");
+        }
+
+        @Override
+        public void onListPage(Collection<V1ConfigMap> objects) {
+            StringBuilder page = new StringBuilder("page");
+            for (V1ConfigMap object : objects)
+                page.append(' ').append(object.getMetadata().getName());
+            calls.add(page.toString());
+        }
+
+        @Override
+        public void endList() {
+            calls.add("end");
+        }
+
+        @Override
+        public void onEvent(K8sUtil.WatchEvent event, V1ConfigMap object) {
+            calls.add(event + " " + object.getMetadata().getName());
+        }
+    }
+
+    static V1ConfigMap configMap(String name) {
+        return new V1ConfigMap().metadata(new V1ObjectMeta().namespace("dns").name(name));
+    }
+
+    //A page of the objects, at resourceVersion 42
+    static V1ConfigMapList page(List<V1ConfigMap> all, String continueToken, Integer limit) {
+        int from = continueToken == null ? 0 : Integer.parseInt(continueToken);
+        int to = Math.min(from + limit, all.size());
+        return new V1ConfigMapList()
+                .metadata(new V1ListMeta().resourceVersion("42")
+                        ._continue(to < all.size() ? Integer.toString(to) : null))
+                .items(new ArrayList<>(all.subList(from, to)));
+    }
+
+    @Test
+    public void testPagedList() throws Exception {
+        List<V1ConfigMap> all = new ArrayList<>(Arrays.asList(configMap("a"), configMap("b"), configMap("c")));
+        RecordingHandler handler = new RecordingHandler();
+        List<Integer> limits = new ArrayList<>();
+        ConfigDto config = new ConfigDto();
+        config.listPageSize = 2;
+        Informer<V1ConfigMap> informer = new Informer<>("test-configmaps", null,
+                (continueToken, limit) -> {
+                    limits.add(limit);
+                    return page(all, continueToken, limit);
+                },
+                null, null, handler, configMap -> true, config);
+
+        assertEquals("42", informer.relist());
+        assertEquals(Arrays.asList(2, 2), limits);
+        assertEquals(Arrays.asList("begin", "page a b", "page c", "end"), handler.calls);
+        assertTrue(informer.hasSynced());
+        assertNotNull(informer.get("dns", "c"));
+
+        //Gone from the next list, gone from the cache
+        all.remove(0);
+        informer.relist();
+        assertNull(informer.get("dns", "a"));
+        assertEquals(2, informer.list().size());
+    }
+
+    @Test
+    public void testFilter() {
+        RecordingHandler handler = new RecordingHandler();
+        Informer<V1ConfigMap> informer = new Informer<>("test-filtered", null, null, null, null, handler,
+                configMap -> ! configMap.getMetadata().getName().startsWith("x"), new ConfigDto());
+
+        informer.apply(K8sUtil.WatchEvent.ADDED, configMap("a"));
+        informer.apply(K8sUtil.WatchEvent.ADDED, configMap("xa"));
+        assertNotNull(informer.get("dns", "a"));
+        assertNull(informer.get("dns", "xa"));
+
+        //The handler sees every event, cached or not
+        informer.apply(K8sUtil.WatchEvent.DELETED, configMap("a"));
+        assertNull(informer.get("dns", "a"));
+        assertEquals(Arrays.asList("ADDED a", "ADDED xa", "DELETED a"), handler.calls);
+    }
+
+    @Test
+    public void testRetryDelay() {
+        for (int failures = 1; failures < 100; failures++) {
+            long max = Math.min(1000L << Math.min(failures - 1, 20), 60000);
+            long delay = Informer.retryDelay(failures, 60000);
+            assertTrue(delay >= max / 2 && delay <= max, failures + ": " + delay);
+        }
+    }
+
+    @Test
+    public void testGone() {
+        V1Status status = new V1Status().code(410).reason("Expired");
+        Watch.Response<V1ConfigMap> response = new Watch.Response<>("ERROR", status);
+        PrettyException e = assertThrows(PrettyException.class,
+                () -> new K8sUtil.WatchChecker<V1ConfigMap>().check(response));
+        assertTrue(K8sUtil.isGone(new PrettyException("Failed to execute watch", e)));
+
+        Watch.Response<V1ConfigMap> other = new Watch.Response<>("ERROR", new V1Status().code(500));
+        e = assertThrows(PrettyException.class, () -> new K8sUtil.WatchChecker<V1ConfigMap>().check(other));
+        assertFalse(K8sUtil.isGone(e));
+        assertTrue(K8sUtil.isGone(new ApiException(410, "Gone")));
+    }
+}
@@ -0,0 +1,38 @@
+package info.arhome.home.k8s.nsd4k;
+
+import org.junit.jupiter.api.Test;
+
+import java.security.KeyPair;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class KeyPairPoolTest {
+    @Test
+    public void testRefill() throws Exception {
+        KeyPairPool pool = new KeyPairPool(KeyPairPool.Algorithm.EC_P256, 4);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (pool.size() < 4 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(4, pool.size());
+
+        KeyPair keyPair = pool.take();
+        assertEquals(256, ((ECPublicKey) keyPair.getPublic()).getParams().getCurve().getField().getFieldSize());
+    }
+
+    @Test
+    public void testOnDemand() throws Exception {
+        KeyPairPool pool = new KeyPairPool(KeyPairPool.Algorithm.RSA_2048, 0);
+        KeyPair keyPair = pool.take();
+        assertEquals(2048, ((RSAPublicKey) keyPair.getPublic()).getModulus().bitLength());
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void testAlgorithm() {
+        assertEquals(KeyPairPool.Algorithm.RSA_3072, KeyPairPool.Algorithm.get("rsa3072"));
+        assertThrows(PrettyException.class, () -> KeyPairPool.Algorithm.get("dsa"));
+    }
+}
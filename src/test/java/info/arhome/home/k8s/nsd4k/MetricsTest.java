@@ -0,0 +1,47 @@
+package info.arhome.home.k8s.nsd4k;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MetricsTest {
+    @Test
+    public void testCounter() {
+        Metrics.Counter counter = Metrics.counter("test_counter_total", "Test counter", "a", "x\"y");
+        assertSame(counter, Metrics.counter("test_counter_total", "Test counter", "a", "x\"y"));
+        counter.inc();
+        counter.inc();
+
+        assertEquals(2, counter.get());
+        assertTrue(Metrics.scrape().contains("test_counter_total{a=\"x\\\"y\"} 2\n"));
+    }
+
+    @Test
+    public void testHistogram() {
+        Metrics.Histogram histogram = Metrics.histogram("test_seconds", "Test histogram", new double[]{0.001, 0.01});
+        histogram.record(500_000);
+        histogram.record(1_000_000);
+        histogram.record(5_000_000);
+        histogram.record(50_000_000);
+
+        String scrape = Metrics.scrape();
+        assertEquals(4, histogram.count());
+        assertTrue(scrape.contains("test_seconds_bucket{le=\"0.001\"} 2\n"));
+        assertTrue(scrape.contains("test_seconds_bucket{le=\"0.01\"} 3\n"));
+        assertTrue(scrape.contains("test_seconds_bucket{le=\"+Inf\"} 4\n"));
+        assertTrue(scrape.contains("test_seconds_sum 0.0565\n"));
+        assertTrue(scrape.contains("test_seconds_count 4\n"));
+    }
+
+    @Test
+    public void testGauge() {
+        Metrics.gauge("test_gauge", "Test gauge", () -> 1);
+        Metrics.gauge("test_gauge", "Test gauge", () -> 7);
+        assertTrue(Metrics.scrape().contains("test_gauge 7\n"));
+
+        assertThrows(IllegalArgumentException.class, () -> Metrics.counter("test_gauge", "Test gauge"));
+    }
+}
@@ -0,0 +1,226 @@
+package info.arhome.home.k8s.nsd4k;
+
+import org.junit.jupiter.api.Test;
+
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.OPTRecord;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class ResolverTest {
+    Resolver resolver;
+
+    void initResolver(String... addrs) {
+        initOrderedResolver("random", addrs);
+    }
+
+    void initOrderedResolver(String answerOrder, String... addrs) {
+        ConfigDto config = new ConfigDto();
+        config.domains = new String[]{"home", "home.arhome.info"};
+        config.answerOrder = answerOrder;
+
+        DnsDB db = new DnsDB();
+        DnsDB.Entry entry = new DnsDB.Entry();
+        entry.kind = "Service";
+        entry.namespace = "ns";
+        entry.name = "svc";
+        entry.aRecords.put("svc.ns", Arrays.asList(addrs));
+        db.addreplace(entry);
+
+        resolver = new Resolver(config, db);
+    }
+
+    Message query(String name, int type, boolean edns) throws Exception {
+        return query(name, type, DClass.IN, edns);
+    }
+
+    Message query(String name, int type, int dclass, boolean edns) throws Exception {
+        Message query = Message.newQuery(Record.newRecord(Name.fromString(name), type, dclass));
+        if (edns)
+            query.addRecord(new OPTRecord(1232, 0, 0), Section.ADDITIONAL);
+        Message reply = new Message(reply(query.toWire()));
+        assertEquals(query.getHeader().getID(), reply.getHeader().getID());
+        assert(reply.getHeader().getFlag(Flags.QR));
+        assert(reply.getHeader().getFlag(Flags.RD));
+        assertEquals(query.getQuestion(), reply.getQuestion());
+        return reply;
+    }
+
+    ByteBuffer reply(byte[] in) {
+        //Trailing bytes beyond the limit must be ignored
+        ByteBuffer inBuffer = ByteBuffer.allocate(in.length + 16);
+        inBuffer.put(in).put(new byte[16]).flip().limit(in.length);
+        ByteBuffer out = ByteBuffer.allocate(Resolver.EDNS_PAYLOAD_SIZE);
+        assert(resolver.generateReply(inBuffer, out, false));
+        return out.flip();
+    }
+
+    List<String> unsortedAddresses(Message reply) {
+        List<String> result = new ArrayList<>();
+        for (Record r : reply.getSection(Section.ANSWER))
+            result.add(r.rdataToString());
+        return result;
+    }
+
+    List<String> addresses(Message reply) {
+        List<String> result = unsortedAddresses(reply);
+        Collections.sort(result);
+        return result;
+    }
+
+    @Test
+    void testA() throws Exception {
+        initResolver("172.16.1.1", "172.16.1.2", "fc00::1");
+
+        Message reply = query("svc.ns.home.", Type.A, false);
+        assertEquals(Rcode.NOERROR, reply.getRcode());
+        assertEquals(Arrays.asList("172.16.1.1", "172.16.1.2"), addresses(reply));
+        assertEquals(Name.fromString("svc.ns.home."), reply.getSection(Section.ANSWER).get(0).getName());
+        assert(reply.getOPT() == null);
+    }
+
+    @Test
+    void testMixedCase() throws Exception {
+        initResolver("172.16.1.1");
+
+        Message reply = query("SVC.Ns.HOME.", Type.A, false);
+        assertEquals(Rcode.NOERROR, reply.getRcode());
+        assertEquals(Collections.singletonList("172.16.1.1"), addresses(reply));
+    }
+
+    @Test
+    void testOtherClass() throws Exception {
+        initResolver("172.16.1.1");
+
+        Message reply = query("svc.ns.home.", Type.A, DClass.CH, true);
+        assertEquals(Rcode.NOERROR, reply.getRcode());
+        assertEquals(Collections.singletonList("172.16.1.1"), addresses(reply));
+        assertEquals(DClass.CH, reply.getSection(Section.ANSWER).get(0).getDClass());
+        assert(reply.getOPT() != null);
+    }
+
+    @Test
+    void testAAAA() throws Exception {
+        initResolver("172.16.1.1", "fc00::1");
+
+        Message reply = query("svc.ns.home.arhome.info.", Type.AAAA, false);
+        assertEquals(Rcode.NOERROR, reply.getRcode());
+        assertEquals(Collections.singletonList("fc00:0:0:0:0:0:0:1"), addresses(reply));
+    }
+
+    @Test
+    void testAny() throws Exception {
+        initResolver("172.16.1.1", "fc00::1");
+
+        Message reply = query("svc.ns.home.", Type.ANY, false);
+        assertEquals(Rcode.NOERROR, reply.getRcode());
+        assertEquals(2, reply.getSection(Section.ANSWER).size());
+    }
+
+    @Test
+    void testNoData() throws Exception {
+        initResolver("172.16.1.1");
+
+        Message reply = query("svc.ns.home.", Type.MX, false);
+        assertEquals(Rcode.NOERROR, reply.getRcode());
+        assert(reply.getSection(Section.ANSWER).isEmpty());
+    }
+
+    @Test
+    void testNxdomain() throws Exception {
+        initResolver("172.16.1.1");
+
+        assertEquals(Rcode.NXDOMAIN, query("other.ns.home.", Type.A, false).getRcode());
+        assertEquals(Rcode.NXDOMAIN, query("svc.ns.example.", Type.A, false).getRcode());
+        assertEquals(Rcode.NXDOMAIN, query("svc.nshome.", Type.A, false).getRcode());
+        assertEquals(Rcode.NXDOMAIN, query("home.", Type.A, false).getRcode());
+    }
+
+    @Test
+    void testEdns() throws Exception {
+        initResolver("172.16.1.1");
+
+        Message reply = query("other.ns.home.", Type.A, true);
+        assertEquals(Rcode.NXDOMAIN, reply.getRcode());
+        assertEquals(Resolver.EDNS_PAYLOAD_SIZE, reply.getOPT().getPayloadSize());
+        assertEquals(0, reply.getOPT().getExtendedRcode());
+    }
+
+    @Test
+    void testTruncate() throws Exception {
+        String[] addrs = new String[40];
+        for (int i = 0; i < addrs.length; i++)
+            addrs[i] = "172.16.1." + i;
+        initResolver(addrs);
+
+        Message reply = query("svc.ns.home.", Type.A, false);
+        assert(reply.getHeader().getFlag(Flags.TC));
+        assert(reply.getSection(Section.ANSWER).isEmpty());
+
+        reply = query("svc.ns.home.", Type.A, true);
+        assert(!reply.getHeader().getFlag(Flags.TC));
+        assertEquals(addrs.length, reply.getSection(Section.ANSWER).size());
+    }
+
+    @Test
+    void testFormerr() throws Exception {
+        initResolver("172.16.1.1");
+
+        byte[] in = Message.newQuery(Record.newRecord(Name.fromString("svc.ns.home."), Type.A, DClass.IN)).toWire();
+        Message reply = new Message(reply(Arrays.copyOf(in, in.length - 3)));
+        assertEquals(Rcode.FORMERR, reply.getRcode());
+        assert(reply.getHeader().getFlag(Flags.QR));
+        assert(reply.getHeader().getFlag(Flags.RD));
+    }
+
+    @Test
+    void testLargeEdns() throws Exception {
+        String[] addrs = new String[300];
+        for (int i = 0; i < addrs.length; i++)
+            addrs[i] = "172.16." + (i / 256) + "." + (i % 256);
+        initResolver(addrs);
+
+        //More than we advertise, must be truncated
+        Message query = Message.newQuery(Record.newRecord(Name.fromString("svc.ns.home."), Type.A, DClass.IN));
+        query.addRecord(new OPTRecord(65535, 0, 0), Section.ADDITIONAL);
+        Message reply = new Message(reply(query.toWire()));
+        assert(reply.getHeader().getFlag(Flags.TC));
+    }
+
+    @Test
+    void testFixedOrder() throws Exception {
+        initOrderedResolver("fixed", "172.16.1.2", "172.16.1.1", "172.16.1.3");
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Arrays.asList("172.16.1.2", "172.16.1.1", "172.16.1.3"),
+                    unsortedAddresses(query("svc.ns.home.", Type.A, false)));
+        }
+    }
+
+    @Test
+    void testRoundRobin() throws Exception {
+        initOrderedResolver("roundrobin", "172.16.1.1", "172.16.1.2", "172.16.1.3");
+
+        assertEquals(Arrays.asList("172.16.1.1", "172.16.1.2", "172.16.1.3"),
+                unsortedAddresses(query("svc.ns.home.", Type.A, false)));
+        assertEquals(Arrays.asList("172.16.1.2", "172.16.1.3", "172.16.1.1"),
+                unsortedAddresses(query("svc.ns.home.", Type.A, false)));
+        assertEquals(Arrays.asList("172.16.1.3", "172.16.1.1", "172.16.1.2"),
+                unsortedAddresses(query("svc.ns.home.", Type.A, DClass.CH, false)));
+        assertEquals(Arrays.asList("172.16.1.1", "172.16.1.2", "172.16.1.3"),
+                unsortedAddresses(query("svc.ns.home.", Type.A, false)));
+    }
+}